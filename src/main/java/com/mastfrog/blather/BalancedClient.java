@@ -0,0 +1,321 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import com.mastfrog.url.Protocol;
+import io.netty.util.concurrent.Future;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A WebsocketHostClient backed by several endpoints, which chooses one for
+ * each new request according to a LoadBalancing strategy, and stops sending
+ * connections to endpoints which repeatedly fail until a back-off period has
+ * elapsed.
+ *
+ * @author Tim Boudreau
+ */
+final class BalancedClient implements WebsocketHostClient {
+
+    static final int EJECT_AFTER_FAILURES = 3;
+    private static final long BASE_EJECTION_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long MAX_EJECTION_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private final WebSocketClientsImpl clients;
+    final Endpoint[] endpoints;
+    private final LoadBalancing strategy;
+    private final Ticker ticker;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    BalancedClient(WebSocketClientsImpl clients, LoadBalancing strategy, List<ClientImpl> endpoints) {
+        this(clients, strategy, endpoints, Ticker.SYSTEM);
+    }
+
+    BalancedClient(WebSocketClientsImpl clients, LoadBalancing strategy, List<ClientImpl> endpoints, Ticker ticker) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints");
+        }
+        this.clients = clients;
+        this.strategy = strategy;
+        this.ticker = ticker;
+        this.endpoints = new Endpoint[endpoints.size()];
+        for (int i = 0; i < this.endpoints.length; i++) {
+            this.endpoints[i] = new Endpoint(endpoints.get(i), i, ticker);
+        }
+    }
+
+    /**
+     * Choose the endpoint the next request should go to, without assigning
+     * anything to it.
+     *
+     * @return An endpoint
+     */
+    Endpoint pick() {
+        long now = ticker.nanoTime();
+        // Start scanning at a different position each time so ties are
+        // spread around rather than always going to the first endpoint
+        int start = Math.floorMod(rotation.getAndIncrement(), endpoints.length);
+        Endpoint best = null;
+        Endpoint soonestBack = null;
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint e = endpoints[(start + i) % endpoints.length];
+            if (e.isEjected(now)) {
+                if (soonestBack == null || e.ejectedUntil < soonestBack.ejectedUntil) {
+                    soonestBack = e;
+                }
+                continue;
+            }
+            if (best == null || e.isBetterThan(best, strategy)) {
+                best = e;
+            }
+        }
+        // If everything is ejected, still try something
+        return best == null ? soonestBack : best;
+    }
+
+    /**
+     * Choose an endpoint for a new request and count the request against it
+     * at once, so a burst of requests made before any of them connects is
+     * spread out rather than all landing on whichever endpoint looked best
+     * when it began. The request reports back to the endpoint when its
+     * connection fails or closes, or when it is closed without connecting.
+     *
+     * @param factory Creates the request on the chosen endpoint
+     * @return A request
+     */
+    private WebsocketClientRequest assign(Function<Endpoint, WebsocketClientRequest> factory) {
+        Endpoint e = pick();
+        e.outstanding.incrementAndGet();
+        ReqImpl result;
+        try {
+            result = (ReqImpl) factory.apply(e);
+        } catch (RuntimeException ex) {
+            // Never created, so nothing will ever report it finished
+            e.outstanding.decrementAndGet();
+            throw ex;
+        }
+        result.observer = e;
+        return result;
+    }
+
+    @Override
+    public WebsocketClientRequest request(String path) {
+        return assign(e -> e.client.request(path));
+    }
+
+    @Override
+    public WebsocketClientRequest request(String path, Object sendWhenConnected) {
+        return assign(e -> e.client.request(path, sendWhenConnected));
+    }
+
+    /**
+     * Create a template which creates each request on whichever endpoint is
+     * chosen at the time.
+     *
+     * @param path The path
+     * @return A template
+     */
+    @Override
+    public WebsocketRequestTemplate template(String path) {
+        WebsocketRequestTemplate[] templates = new WebsocketRequestTemplate[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            templates[i] = endpoints[i].client.template(path);
+        }
+        return new WebsocketRequestTemplate() {
+            @Override
+            public WebsocketClientRequest request() {
+                return request(null);
+            }
+
+            @Override
+            public WebsocketClientRequest request(Object sendWhenConnected) {
+                return assign(e -> sendWhenConnected == null
+                        ? templates[e.index].request() : templates[e.index].request(sendWhenConnected));
+            }
+
+            @Override
+            public URI uri() {
+                return templates[pick().index].uri();
+            }
+        };
+    }
+
+    @Override
+    public MultiplexedConnection multiplex(String path, int initialCredit) {
+        return Multiplexer.start(clients, request(path), initialCredit);
+    }
+
+    @Override
+    public Future<BroadcastResult> broadcast(Object message) {
+        List<ChannelControl> upgraded = new ArrayList<>();
+        for (Endpoint e : endpoints) {
+            e.client.upgraded(upgraded);
+        }
+        return clients.broadcastTo(message, upgraded);
+    }
+
+    @Override
+    public int openConnections() {
+        int result = 0;
+        for (Endpoint e : endpoints) {
+            result += e.client.openConnections();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the port of the endpoint the next request would currently be
+     * sent to.
+     *
+     * @return A port
+     */
+    @Override
+    public int getPort() {
+        return pick().client.getPort();
+    }
+
+    /**
+     * Returns the host of the endpoint the next request would currently be
+     * sent to.
+     *
+     * @return A host
+     */
+    @Override
+    public String getHost() {
+        return pick().client.getHost();
+    }
+
+    @Override
+    public Protocol getProtocol() {
+        return endpoints[0].client.getProtocol();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(strategy.name()).append('[');
+        for (int i = 0; i < endpoints.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(endpoints[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    static final class Endpoint implements ConnectionObserver {
+
+        final ClientImpl client;
+        final int index;
+        private final Ticker ticker;
+        // Counted from when a request is assigned, until its connection
+        // fails or closes, or it is closed without connecting
+        final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long latencyNanos;
+        private volatile long ejectedUntil;
+
+        Endpoint(ClientImpl client, int index, Ticker ticker) {
+            this.client = client;
+            this.index = index;
+            this.ticker = ticker;
+        }
+
+        boolean isEjected(long now) {
+            return consecutiveFailures.get() >= EJECT_AFTER_FAILURES && ejectedUntil - now > 0;
+        }
+
+        boolean isBetterThan(Endpoint other, LoadBalancing strategy) {
+            int conns = outstanding.get();
+            int otherConns = other.outstanding.get();
+            long latency = latencyNanos;
+            long otherLatency = other.latencyNanos;
+            switch (strategy) {
+                case LOWEST_LATENCY:
+                    // Weight latency by the connections already assigned, so
+                    // an endpoint twice as fast gets about twice as many
+                    // connections rather than all of them; unmeasured
+                    // endpoints (zero) sort first so they get probed
+                    long score = latency * (conns + 1);
+                    long otherScore = otherLatency * (otherConns + 1);
+                    if (score != otherScore) {
+                        return score < otherScore;
+                    }
+                    return conns < otherConns;
+                default:
+                    if (conns != otherConns) {
+                        return conns < otherConns;
+                    }
+                    return latency < otherLatency;
+            }
+        }
+
+        private void failed() {
+            int failures = consecutiveFailures.incrementAndGet();
+            if (failures >= EJECT_AFTER_FAILURES) {
+                // Back off exponentially while the endpoint keeps failing
+                int shift = Math.min(failures - EJECT_AFTER_FAILURES, 8);
+                long duration = Math.min(MAX_EJECTION_NANOS, BASE_EJECTION_NANOS << shift);
+                ejectedUntil = ticker.nanoTime() + duration;
+            }
+        }
+
+        @Override
+        public void onConnectFailed(Throwable cause) {
+            outstanding.decrementAndGet();
+            if (cause != null) {
+                failed();
+            }
+        }
+
+        @Override
+        public void onHandshake(long elapsedNanos, Throwable failure) {
+            if (failure != null) {
+                failed();
+                return;
+            }
+            consecutiveFailures.set(0);
+            long old = latencyNanos;
+            // Exponentially weighted moving average, weighting the newest
+            // sample at 1/4
+            latencyNanos = old == 0 ? elapsedNanos : old + ((elapsedNanos - old) >> 2);
+        }
+
+        @Override
+        public void onClosed() {
+            outstanding.decrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return client.getHost() + ":" + client.getPort() + " (" + outstanding.get()
+                    + " connections, " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + "ms"
+                    + (consecutiveFailures.get() > 0 ? ", " + consecutiveFailures.get() + " failures" : "") + ")";
+        }
+    }
+}
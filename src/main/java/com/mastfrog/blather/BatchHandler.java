@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.util.List;
+
+/**
+ * Handler which receives the messages decoded during one read from the
+ * socket as a list, rather than one call per message - useful for consumers
+ * which can do bulk inserts or otherwise amortize per-call overhead.
+ *
+ * @author Tim Boudreau
+ */
+@FunctionalInterface
+public interface BatchHandler<T> {
+
+    /**
+     * Called with the messages decoded in one read cycle, or fewer if the
+     * batch reached its maximum size first.
+     *
+     * @param firstIndex The cumulative count of messages delivered to this
+     * handler before this batch
+     * @param messages The messages, in the order they were received. The list
+     * is reused for the next batch, so copy it if you need to retain it past
+     * the end of this call
+     * @param ctrl Object for manipulating the channel or sending messages
+     * @return Replies to marshal and send, each as its own message, or null -
+     * the replies to a batch are flushed to the socket together
+     * @throws Exception If something goes wrong
+     */
+    List<?> onMessages(int firstIndex, List<T> messages, ChannelControl ctrl) throws Exception;
+}
@@ -33,6 +33,17 @@ import com.mastfrog.url.ParsedParameters;
 import com.mastfrog.url.Protocols;
 import com.mastfrog.url.URL;
 import static com.mastfrog.util.preconditions.Checks.notNull;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.Future;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
 /**
  * Entry point for creating web socket clients - use one of the
@@ -62,16 +73,32 @@ public abstract class Blather {
      * @param host The host
      * @param port The port
      * @param ssl If true, use wss not ws protocol
-     * @return this
+     * @return A client for that host and port
      */
     public abstract WebsocketHostClient client(String host, int port, boolean ssl);
 
+    /**
+     * Create a client backed by several endpoints serving the same
+     * websockets, which chooses an endpoint for each new request according to
+     * the passed strategy. Endpoints whose connections or handshakes fail
+     * repeatedly are skipped for a back-off period, which grows while they
+     * keep failing.
+     *
+     * @param balancing How to choose an endpoint for each new request
+     * @param ssl If true, use wss not ws protocol
+     * @param endpoints The endpoints (use
+     * <code>InetSocketAddress.createUnresolved()</code> to defer name
+     * resolution until connect time)
+     * @return A client
+     */
+    public abstract WebsocketHostClient client(LoadBalancing balancing, boolean ssl, InetSocketAddress... endpoints);
+
     /**
      * Create a client for the specified host and port, using plain HTTP.
      *
      * @param host The host
      * @param port The port
-     * @return this
+     * @return A client for that host and port
      */
     public final WebsocketHostClient client(String host, int port) {
         return client(host, port, false);
@@ -108,20 +135,229 @@ public abstract class Blather {
     }
 
     /**
-     * Create a request to the passed URL.
+     * Create a client which connects to a websocket server listening on a
+     * unix domain socket on this machine, skipping the TCP stack entirely.
+     * The usual HTTP upgrade is performed over the socket, with
+     * <code>localhost</code> as the host. Requires Linux and Netty's native
+     * epoll transport on the classpath.
+     *
+     * @param socket The path to the socket file
+     * @return A client
+     * @throws UnsupportedOperationException if the epoll transport is not
+     * available
+     */
+    public abstract WebsocketHostClient unixClient(Path socket);
+
+    /**
+     * Create a request to the passed URL. Besides ws:// and wss:// URLs,
+     * accepts <code>ws+unix://</code> URLs naming a unix domain socket and
+     * the path to request over it, separated by a colon - e.g.
+     * <code>ws+unix:///var/run/feed.sock:/ws?since=0</code>.
      *
      * @param url The url
      * @return A request - attach a message handler to execute it.
      */
     public final WebsocketClientRequest client(String url) {
+        if (notNull("url", url).startsWith(UNIX_PREFIX)) {
+            return unixRequest(url, this::unixClient);
+        }
         return client(URL.parse(url));
     }
 
+    private static final String UNIX_PREFIX = "ws+unix://";
+
+    static WebsocketClientRequest unixRequest(String url, Function<Path, WebsocketHostClient> clients) {
+        String target = url.substring(UNIX_PREFIX.length());
+        int colon = target.indexOf(':');
+        String socket = colon < 0 ? target : target.substring(0, colon);
+        String path = colon < 0 ? "/" : target.substring(colon + 1);
+        if (socket.isEmpty()) {
+            throw new IllegalArgumentException("No socket path in " + url);
+        }
+        String query = null;
+        int q = path.indexOf('?');
+        if (q >= 0) {
+            query = path.substring(q + 1);
+            path = path.substring(0, q);
+        }
+        WebsocketClientRequest result = clients.apply(Paths.get(socket))
+                .request(path.isEmpty() ? "/" : path);
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int eq = pair.indexOf('=');
+                try {
+                    result.addUrlQueryPair(
+                            URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8"),
+                            eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                } catch (UnsupportedEncodingException ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Send one message to many connections, which may belong to different
+     * clients. The message is encoded once, and the resulting buffer shared
+     * by the frames written to each connection, so the cost of fanning out
+     * does not grow with the cost of serializing the message. Requests which
+     * are not yet connected are skipped.
+     *
+     * @param message The message - a String or other CharSequence, a
+     * WebSocketFrame (which will be released once sent), or an object to
+     * convert to JSON
+     * @param targets The requests whose connections should receive the message
+     * @return A future which completes once the message has been written to
+     * every connection, reporting any which failed
+     */
+    public abstract Future<BroadcastResult> broadcast(Object message, Iterable<? extends WebsocketClientRequest> targets);
+
+    /**
+     * Set how long host name lookups are cached for, across every client
+     * created by this instance (the default is 30 seconds). A cached entry is
+     * dropped early if connecting to the host fails. Pass Duration.ZERO to
+     * disable caching.
+     *
+     * @param ttl The time to live
+     * @return this
+     */
+    public abstract Blather resolverCacheTtl(Duration ttl);
+
+    /**
+     * Limit the number of connections which may be connecting or performing
+     * the websocket handshake at the same time, across all clients created by
+     * this instance, and for any single host. Connection attempts beyond the
+     * limit wait in a queue, in the order they were made, until a slot frees
+     * up. This prevents a reconnect stampede - thousands of connections
+     * retrying at the moment a server comes back, overwhelming both it and
+     * the local event loops with TLS handshakes - from taking longer to
+     * recover than an orderly reconnect would. By default there is no limit.
+     * An attempt which has not finished its handshake after 30 seconds gives
+     * up its slot to the next in line.
+     *
+     * @param maxConcurrent The maximum in-progress connection attempts
+     * @param maxPerHost The maximum in-progress connection attempts to any
+     * one host
+     * @return this
+     */
+    public Blather limitConcurrentHandshakes(int maxConcurrent, int maxPerHost) {
+        return limitConcurrentHandshakes(maxConcurrent, maxPerHost, Duration.ofSeconds(30));
+    }
+
+    /**
+     * Limit the number of connections which may be connecting or performing
+     * the websocket handshake at the same time, as
+     * {@link #limitConcurrentHandshakes(int, int)} does, with a different
+     * time after which an attempt which has not finished its handshake gives
+     * up its slot. The attempt itself is not aborted.
+     *
+     * @param maxConcurrent The maximum in-progress connection attempts
+     * @param maxPerHost The maximum in-progress connection attempts to any
+     * one host
+     * @param timeout The time an attempt may hold its slot
+     * @return this
+     */
+    public abstract Blather limitConcurrentHandshakes(int maxConcurrent, int maxPerHost, Duration timeout);
+
+    /**
+     * Get statistics about connection attempts subject to the limits set by
+     * <code>limitConcurrentHandshakes()</code>, such as queue depth and
+     * waiting times.
+     *
+     * @return The statistics
+     */
+    public abstract HandshakeAdmission handshakeAdmission();
+
+    /**
+     * Get the number of connections, across all clients created by this
+     * instance, which are connecting or open.
+     *
+     * @return A count
+     */
+    public abstract int openConnections();
+
+    /**
+     * Close every open connection and stop this instance's event loops,
+     * unless they are shared with something else (see
+     * {@link ClientEventLoops}). A close frame is sent to every connection
+     * at once, and the servers are given until the timeout elapses to
+     * acknowledge; any connection still open then is closed without waiting
+     * further. This instance cannot be used afterwards: creating clients or
+     * requests throws IllegalStateException, and a request created earlier
+     * but started afterwards fails without connecting.
+     *
+     * @param timeout How long to wait for servers to acknowledge closing
+     * @return A report of how many connections closed cleanly
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public abstract ShutdownReport shutdown(Duration timeout) throws InterruptedException;
+
+    /**
+     * Minimize the memory each connection retains, for processes which hold
+     * very many mostly idle connections. Connections opened afterwards will
+     * not offer permessage-deflate compression, which costs a compressor and
+     * decompressor per connection for as long as it is open.
+     *
+     * @param lowFootprint Whether to minimize per-connection memory
+     * @return this
+     */
+    public abstract Blather lowFootprint(boolean lowFootprint);
+
+    /**
+     * Set the socket and buffer settings used for new connections, unless a
+     * request sets its own. The default is {@link TransportProfile#DEFAULT},
+     * which leaves everything at Netty's defaults.
+     *
+     * @param profile The profile
+     * @return this
+     */
+    public abstract Blather transportProfile(TransportProfile profile);
+
+    /**
+     * Set the frame size limits, masking and UTF-8 validation used for new
+     * connections, unless a request sets its own.
+     *
+     * @param options The codec options
+     * @return this
+     */
+    public abstract Blather codecOptions(CodecOptions options);
+
+    /**
+     * Serialize outbound messages on the passed executor, so event loop
+     * threads only write finished frames. By default, a message passed to
+     * {@link ChannelControl#send(java.lang.Object)} is encoded by whatever
+     * thread calls it, and replies returned from callbacks are encoded on
+     * the event loop. With an encoder executor set, sends made from the
+     * event loop and callback replies are encoded on the executor instead;
+     * sends from other threads are still encoded by the caller. Either way,
+     * frames for a connection are written in the order they were sent.
+     * Applies to connections opened after it is called.
+     *
+     * @param encoder An executor, or null to encode on the event loop
+     * @return this
+     */
+    public abstract Blather encodeOn(Executor encoder);
+
+    /**
+     * Open a session recorded with
+     * {@link WebsocketClientRequest#capture(java.nio.file.Path, int)} for
+     * replay through a callback.
+     *
+     * @param capture The capture file
+     * @return A replay, which is run by calling one of its run() methods
+     * @throws IOException If the file cannot be read or is not a capture
+     */
+    public abstract SessionReplay replay(Path capture) throws IOException;
+
     /**
      * Create a client factory with a vanilla ObjectMapper, which will use a
      * runtime shutdown hook to close connections and thread pools.
      *
-     * @return this
+     * @return A new client factory
      */
     public static Blather create() {
         return new WebSocketClientsImpl(shutdownHookRegistry(), new ObjectMapper());
@@ -132,10 +368,36 @@ public abstract class Blather {
      * runtime shutdown hook to close connections and thread pools.
      *
      * @param mapper A Jackon ObjectMapper for json construction
-     * @return this
+     * @return A new client factory
      */
     public static Blather create(ObjectMapper mapper) {
         return new WebSocketClientsImpl(shutdownHookRegistry(), mapper);
     }
+
+    /**
+     * Create a client factory which runs its connections on an existing
+     * event loop group, such as a server's, rather than starting its own
+     * threads. The group is never shut down by the client factory.
+     *
+     * @param mapper A Jackon ObjectMapper for json construction
+     * @param group The event loop group
+     * @return A new client factory which does not own the group
+     */
+    public static Blather create(ObjectMapper mapper, EventLoopGroup group) {
+        return create(mapper, ClientEventLoops.shared(group));
+    }
+
+    /**
+     * Create a client factory which runs its connections on the passed
+     * event loops, such as those created by
+     * <code>ClientEventLoops.threadPerCore()</code>.
+     *
+     * @param mapper A Jackon ObjectMapper for json construction
+     * @param loops The event loops
+     * @return A new client factory
+     */
+    public static Blather create(ObjectMapper mapper, ClientEventLoops loops) {
+        return new WebSocketClientsImpl(shutdownHookRegistry(), mapper, notNull("loops", loops));
+    }
 }
 
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Writes one already-encoded frame to many connections. Connections are
+ * grouped by event loop, so each loop gets a single task which sends a
+ * retained duplicate of the frame through each of its connections, rather
+ * than one task per connection; the payload is never copied or re-encoded.
+ *
+ * @author Tim Boudreau
+ */
+final class Broadcast implements ChannelFutureListener {
+
+    private final AtomicInteger remaining;
+    private final Map<Channel, Throwable> failures = new ConcurrentHashMap<>();
+    private final Promise<BroadcastResult> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+    private final int count;
+
+    private Broadcast(int count) {
+        this.count = count;
+        this.remaining = new AtomicInteger(count);
+    }
+
+    static Map<EventLoop, List<Channel>> byEventLoop(Iterable<? extends Channel> channels) {
+        return byEventLoop(channels, ch -> ch);
+    }
+
+    static <T> Map<EventLoop, List<T>> byEventLoop(Iterable<? extends T> items, Function<? super T, Channel> channel) {
+        Map<EventLoop, List<T>> result = new LinkedHashMap<>();
+        for (T item : items) {
+            Channel ch = item == null ? null : channel.apply(item);
+            if (ch != null && ch.isActive()) {
+                result.computeIfAbsent(ch.eventLoop(), loop -> new ArrayList<>()).add(item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write a frame to a set of channels, taking ownership of (and
+     * eventually releasing) the frame.
+     *
+     * @param frame The frame
+     * @param byLoop The connections, grouped by event loop
+     * @return A future which completes once every write has completed
+     */
+    static Future<BroadcastResult> send(WebSocketFrame frame, Map<EventLoop, List<ChannelControl>> byLoop) {
+        int count = 0;
+        for (List<ChannelControl> l : byLoop.values()) {
+            count += l.size();
+        }
+        Broadcast result = new Broadcast(count);
+        if (count == 0) {
+            frame.release();
+            result.promise.setSuccess(new BroadcastResult(0, Collections.emptyMap()));
+            return result.promise;
+        }
+        try {
+            for (Map.Entry<EventLoop, List<ChannelControl>> e : byLoop.entrySet()) {
+                WebSocketFrame forLoop = frame.retainedDuplicate();
+                List<ChannelControl> targets = e.getValue();
+                try {
+                    e.getKey().execute(() -> {
+                        try {
+                            // Sent through each connection, so a broadcast
+                            // waits its turn under the connection's rate limit
+                            for (ChannelControl ctrl : targets) {
+                                ctrl.send(forLoop.retainedDuplicate(), Priority.NORMAL).addListener(result);
+                            }
+                        } finally {
+                            forLoop.release();
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    forLoop.release();
+                    for (ChannelControl ctrl : targets) {
+                        result.completed(ctrl.channel(), ex);
+                    }
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        return result.promise;
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture f) {
+        completed(f.channel(), f.isSuccess() ? null : f.cause());
+    }
+
+    private void completed(Channel channel, Throwable failure) {
+        if (failure != null) {
+            failures.put(channel, failure);
+        }
+        if (remaining.decrementAndGet() == 0) {
+            promise.trySuccess(new BroadcastResult(count, failures));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.channel.Channel;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Aggregated outcome of broadcasting one message to many connections.
+ *
+ * @author Tim Boudreau
+ */
+public final class BroadcastResult {
+
+    private final int attempted;
+    private final Map<Channel, Throwable> failures;
+
+    BroadcastResult(int attempted, Map<Channel, Throwable> failures) {
+        this.attempted = attempted;
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Get the number of connections the message was written to.
+     *
+     * @return The number of connections
+     */
+    public int attempted() {
+        return attempted;
+    }
+
+    /**
+     * Get the number of connections the message was successfully flushed to.
+     *
+     * @return The count
+     */
+    public int succeeded() {
+        return attempted - failures.size();
+    }
+
+    /**
+     * Get the number of connections the message could not be written to.
+     *
+     * @return The count
+     */
+    public int failed() {
+        return failures.size();
+    }
+
+    /**
+     * Get the cause of each failed write, by channel.
+     *
+     * @return A map
+     */
+    public Map<Channel, Throwable> failures() {
+        return failures;
+    }
+
+    /**
+     * Determine if the message was written to every connection.
+     *
+     * @return true if nothing failed
+     */
+    public boolean isSuccess() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "Broadcast to " + attempted + " connections, " + failures.size() + " failed";
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only CharSequence over a range of ASCII bytes in a ByteBuf, which
+ * can be pointed at a new range for each message.
+ *
+ * @author Tim Boudreau
+ */
+final class ByteBufCharSequence implements CharSequence {
+
+    private static final ByteProcessor ASCII = value -> value >= 0;
+    private ByteBuf buf;
+    private int offset;
+    private int length;
+
+    /**
+     * Determine if a range of a buffer is pure 7-bit ASCII, in which case
+     * each byte is one character and the bytes can be viewed as characters
+     * directly.
+     *
+     * @param buf A buffer
+     * @param offset The start
+     * @param length The length
+     * @return true if no byte in the range has its high bit set
+     */
+    static boolean isAscii(ByteBuf buf, int offset, int length) {
+        return length == 0 || buf.forEachByte(offset, length, ASCII) == -1;
+    }
+
+    ByteBufCharSequence reset(ByteBuf buf, int offset, int length) {
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index + " of " + length);
+        }
+        return (char) buf.getByte(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + " to " + end + " of " + length);
+        }
+        return new ByteBufCharSequence().reset(buf, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return length == 0 ? "" : buf.toString(offset, length, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.buffer.ByteBuf;
+import java.io.InputStream;
+
+/**
+ * An InputStream over a ByteBuf which, unlike ByteBufInputStream, can be
+ * pointed at a new buffer for each message, so a callback can hold one
+ * instance for the life of the connection instead of allocating one per
+ * frame. Not thread-safe - use from the event loop only.
+ *
+ * @author Tim Boudreau
+ */
+final class ByteBufInput extends InputStream {
+
+    private ByteBuf buf;
+
+    ByteBufInput reset(ByteBuf buf) {
+        this.buf = buf;
+        return this;
+    }
+
+    @Override
+    public int read() {
+        if (buf == null || !buf.isReadable()) {
+            return -1;
+        }
+        return buf.readByte() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int avail = buf == null ? 0 : buf.readableBytes();
+        if (avail == 0) {
+            return -1;
+        }
+        len = Math.min(avail, len);
+        buf.readBytes(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (buf == null || n <= 0) {
+            return 0;
+        }
+        int count = (int) Math.min(n, buf.readableBytes());
+        buf.skipBytes(count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buf == null ? 0 : buf.readableBytes();
+    }
+}
@@ -65,6 +65,11 @@ public interface ChannelControl {
      * configured to convert it to there is BSON and other support for Jackson)
      * using Jackson
      * </ul>
+     * The message is encoded on the calling thread, unless this is called
+     * on the connection's event loop and an encoder executor was set with
+     * {@link Blather#encodeOn(java.util.concurrent.Executor)}, in which case
+     * it is encoded there and only the finished frame is written from the
+     * event loop.
      *
      * @param <T> The message type
      * @param message The message
@@ -76,6 +81,24 @@ public interface ChannelControl {
      */
     <T> ChannelFuture send(T message);
 
+    /**
+     * Send a message with a priority. On a connection with a
+     * {@link WebsocketClientRequest#rateLimit(com.mastfrog.blather.RateLimit) rate limit},
+     * messages waiting for the limit are written highest priority first, so
+     * control messages need not wait behind bulk traffic; messages of the same
+     * priority are written in the order they were sent. Otherwise this is the
+     * same as {@link #send(java.lang.Object)}.
+     *
+     * @param <T> The message type
+     * @param message The message
+     * @param priority The priority
+     * @return A future which completes when the message has been flushed to
+     * the socket
+     */
+    default <T> ChannelFuture send(T message, Priority priority) {
+        return send(message);
+    }
+
     /**
      * Politely close the channel (sending a CloseWebSocketFrame) and then closing
      * the connection from our side (to brutally kill a connection, simply call
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.google.inject.ImplementedBy;
+import static com.mastfrog.util.preconditions.Checks.notNull;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Supplies the event loops connections run on. By default, Blather creates
+ * its own. In a process which already runs Netty - such as an acteur server -
+ * bind this to one which returns that process's event loop group, so clients
+ * do not add a second thread pool and can run connections on the same
+ * threads as the server channels they serve.
+ *
+ * @author Tim Boudreau
+ */
+@ImplementedBy(OwnEventLoops.class)
+public interface ClientEventLoops {
+
+    /**
+     * Get the event loop group to run connections on.
+     *
+     * @return An event loop group
+     */
+    EventLoopGroup group();
+
+    /**
+     * Determine if the group belongs to something else, in which case
+     * Blather will never shut it down.
+     *
+     * @return true if the group is shared
+     */
+    default boolean isShared() {
+        return true;
+    }
+
+    /**
+     * Choose the event loop a new connection will run on.
+     *
+     * @param host The host
+     * @param port The port
+     * @param path The path
+     * @return An event loop belonging to the group
+     */
+    default EventLoop eventLoopFor(String host, int port, String path) {
+        return group().next();
+    }
+
+    /**
+     * Apply any socket options these event loops are intended to be used
+     * with to the bootstrap for a new connection.
+     *
+     * @param bootstrap A bootstrap
+     */
+    default void configure(Bootstrap bootstrap) {
+        // do nothing
+    }
+
+    /**
+     * Use an existing event loop group, which Blather will not shut down.
+     *
+     * @param group The group
+     * @return A ClientEventLoops
+     */
+    static ClientEventLoops shared(EventLoopGroup group) {
+        notNull("group", group);
+        return () -> group;
+    }
+
+    /**
+     * Create a small, fixed set of event loops - typically one per core -
+     * for latency-sensitive connections, trading CPU for consistently lower
+     * latency between a message arriving and its handler being called.
+     * Connections are assigned to loops in turn, and each stays on the loop
+     * it was assigned for its lifetime. Sockets are opened with TCP_NODELAY,
+     * and the native epoll transport is used on Linux when it is available.
+     * <p>
+     * Java offers no way to pin a thread to a CPU, so pass a ThreadFactory
+     * which uses an affinity library to pin the threads it creates, or pin
+     * the process externally (e.g. with <code>taskset</code>).
+     *
+     * @param loops The number of event loops
+     * @param busyPoll If true, and the epoll transport is available, event
+     * loops spin waiting for I/O rather than blocking, keeping one core per
+     * loop busy at all times; ignored for NIO
+     * @param threads The thread factory, or null for one creating high
+     * priority daemon threads
+     * @return A ClientEventLoops owned by the Blather it is used with
+     */
+    static ClientEventLoops threadPerCore(int loops, boolean busyPoll, ThreadFactory threads) {
+        return new PerCoreEventLoops(loops, busyPoll, threads);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+/**
+ * Settings for encoding and decoding websocket frames: size limits, whether
+ * outbound frames are masked, and whether inbound text is checked to be
+ * valid UTF-8. The defaults match the behavior of earlier versions; for a
+ * trusted server on an internal network, turning off masking and leaving
+ * UTF-8 validation off removes per-byte work from the hot path for large
+ * frames.
+ *
+ * @author Tim Boudreau
+ */
+public final class CodecOptions {
+
+    /**
+     * 64Kb maximum frame payload, masked outbound frames, no UTF-8
+     * validation, and fragmented messages delivered frame by frame.
+     */
+    public static final CodecOptions DEFAULT = builder().build();
+    private final int maxFramePayload;
+    private final int maxMessageSize;
+    private final boolean masking;
+    private final boolean allowMaskMismatch;
+    private final boolean validateUtf8;
+
+    private CodecOptions(Builder b) {
+        this.maxFramePayload = b.maxFramePayload;
+        this.maxMessageSize = b.maxMessageSize;
+        this.masking = b.masking;
+        this.allowMaskMismatch = b.allowMaskMismatch;
+        this.validateUtf8 = b.validateUtf8;
+    }
+
+    /**
+     * Create a builder, initialized with the default settings.
+     *
+     * @return A builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    int maxFramePayload() {
+        return maxFramePayload;
+    }
+
+    int maxMessageSize() {
+        return maxMessageSize;
+    }
+
+    boolean masking() {
+        return masking;
+    }
+
+    boolean allowMaskMismatch() {
+        return allowMaskMismatch;
+    }
+
+    boolean validateUtf8() {
+        return validateUtf8;
+    }
+
+    @Override
+    public String toString() {
+        return "CodecOptions(maxFramePayload=" + maxFramePayload
+                + (maxMessageSize > 0 ? ", maxMessageSize=" + maxMessageSize : "")
+                + ", masking=" + masking + ", allowMaskMismatch=" + allowMaskMismatch
+                + ", validateUtf8=" + validateUtf8 + ")";
+    }
+
+    /**
+     * Builds CodecOptions.
+     */
+    public static final class Builder {
+
+        private int maxFramePayload = 65536;
+        private int maxMessageSize;
+        private boolean masking = true;
+        private boolean allowMaskMismatch;
+        private boolean validateUtf8;
+
+        private Builder() {
+        }
+
+        /**
+         * Set the largest frame payload which will be accepted; larger
+         * frames close the connection.
+         *
+         * @param bytes The maximum size in bytes
+         * @return this
+         */
+        public Builder maxFramePayload(int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Max frame payload must be positive: " + bytes);
+            }
+            maxFramePayload = bytes;
+            return this;
+        }
+
+        /**
+         * Reassemble messages the server splits into several frames, up to
+         * the passed total size, so handlers receive each message whole.
+         * Without this, each fragment is delivered on its own, and
+         * continuation frames are not passed to handlers at all.
+         *
+         * @param bytes The maximum size of a reassembled message in bytes
+         * @return this
+         */
+        public Builder maxMessageSize(int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Max message size must be positive: " + bytes);
+            }
+            maxMessageSize = bytes;
+            return this;
+        }
+
+        /**
+         * Set whether outbound frames are masked. RFC 6455 requires clients
+         * to mask every frame, to defeat cache poisoning by intermediaries
+         * which do not understand websockets; only turn this off for servers
+         * reached directly over a trusted network which accept unmasked
+         * frames.
+         *
+         * @param masking Whether to mask outbound frames
+         * @return this
+         */
+        public Builder masking(boolean masking) {
+            this.masking = masking;
+            return this;
+        }
+
+        /**
+         * Accept inbound frames which are masked, which servers are not
+         * supposed to do.
+         *
+         * @param allow Whether to accept masked frames from the server
+         * @return this
+         */
+        public Builder allowMaskMismatch(boolean allow) {
+            this.allowMaskMismatch = allow;
+            return this;
+        }
+
+        /**
+         * Check that every inbound text frame is valid UTF-8, closing the
+         * connection if not. This examines every byte of every text frame.
+         *
+         * @param validate Whether to validate
+         * @return this
+         */
+        public Builder validateUtf8(boolean validate) {
+            this.validateUtf8 = validate;
+            return this;
+        }
+
+        /**
+         * Create the options.
+         *
+         * @return The options
+         */
+        public CodecOptions build() {
+            return new CodecOptions(this);
+        }
+    }
+}
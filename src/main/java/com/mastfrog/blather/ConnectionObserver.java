@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+/**
+ * Receives lifecycle events for a single request's connection, for use by
+ * things which keep statistics about connections.
+ *
+ * @author Tim Boudreau
+ */
+interface ConnectionObserver {
+
+    ConnectionObserver NONE = new ConnectionObserver() {
+    };
+
+    /**
+     * Called when a connection attempt begins.
+     */
+    default void onConnecting() {
+    }
+
+    /**
+     * Called if the connection could not be established, or was abandoned
+     * because the request was closed before it was, or before it was ever
+     * started. No further events follow.
+     *
+     * @param cause The cause, or null if the attempt was abandoned or failed
+     * before reaching the remote host
+     */
+    default void onConnectFailed(Throwable cause) {
+    }
+
+    /**
+     * Called when the websocket handshake completes or fails.
+     *
+     * @param elapsedNanos Time since the connection attempt began
+     * @param failure The failure, or null on success
+     */
+    default void onHandshake(long elapsedNanos, Throwable failure) {
+    }
+
+    /**
+     * Called when an established connection is closed.
+     */
+    default void onClosed() {
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the connections which have been started and not yet closed. Entries
+ * are added when a connection attempt begins and removed explicitly when it
+ * fails or the channel closes, so the registry never holds closed
+ * connections and never depends on garbage collection to forget them.
+ * Registries may have a parent, which sees every connection added to its
+ * children, so the whole Blather instance can be counted or closed at once.
+ *
+ * @author Tim Boudreau
+ */
+final class ConnectionRegistry {
+
+    private final ConnectionRegistry parent;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger count = new AtomicInteger();
+
+    ConnectionRegistry(ConnectionRegistry parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * A registered connection.
+     */
+    interface Connection {
+
+        /**
+         * Get the channel, if connected.
+         *
+         * @return A channel or null
+         */
+        Channel channel();
+
+        /**
+         * Get the control for the connection, once the websocket handshake
+         * has completed.
+         *
+         * @return A control, or null if not connected or still handshaking
+         */
+        ChannelControl control();
+
+        /**
+         * Mark this connection closed so no further work is started for it,
+         * abandoning a connection attempt which has not completed.
+         *
+         * @return true if it was not already closed
+         */
+        boolean markClosed();
+    }
+
+    void add(Connection conn) {
+        if (connections.add(conn)) {
+            count.incrementAndGet();
+            if (parent != null) {
+                parent.add(conn);
+            }
+        }
+    }
+
+    void remove(Connection conn) {
+        if (connections.remove(conn)) {
+            count.decrementAndGet();
+            if (parent != null) {
+                parent.remove(conn);
+            }
+        }
+    }
+
+    int size() {
+        return count.get();
+    }
+
+    /**
+     * Collect the connections which have completed the websocket handshake.
+     *
+     * @param into The list to add to
+     * @return The list
+     */
+    List<ChannelControl> upgraded(List<ChannelControl> into) {
+        for (Connection conn : connections) {
+            ChannelControl ctrl = conn.control();
+            if (ctrl != null) {
+                into.add(ctrl);
+            }
+        }
+        return into;
+    }
+
+    /**
+     * Close every registered connection. Connected channels are grouped by
+     * event loop and each loop is sent one task to close all of its channels.
+     * If graceful, a close frame is sent and the channel is given until the
+     * deadline for the server to acknowledge it; anything still open at the
+     * deadline is closed forcibly.
+     *
+     * @param graceful Whether to send close frames, or just close the sockets
+     * @param timer Executor to schedule the deadline on
+     * @param timeout The time allowed for graceful closing
+     * @param unit The time unit
+     * @return The progress of closing, whose future completes once every
+     * channel is closed
+     */
+    CloseAll closeAll(boolean graceful, EventExecutor timer, long timeout, TimeUnit unit) {
+        List<Channel> channels = new ArrayList<>();
+        Set<Channel> alreadyClosing = new HashSet<>();
+        for (Connection conn : connections) {
+            Channel ch = conn.channel();
+            // Marking an unconnected connection closed aborts the attempt
+            boolean first = conn.markClosed();
+            if (ch != null && ch.isOpen()) {
+                channels.add(ch);
+                if (!first) {
+                    // The close frame has already been sent
+                    alreadyClosing.add(ch);
+                }
+            }
+        }
+        Map<EventLoop, List<Channel>> byLoop = Broadcast.byEventLoop(channels);
+        int active = 0;
+        for (List<Channel> l : byLoop.values()) {
+            active += l.size();
+        }
+        CloseAll result = new CloseAll(channels.size(), active, graceful, alreadyClosing);
+        if (active == 0) {
+            result.promise.setSuccess(result);
+            return result;
+        }
+        for (Map.Entry<EventLoop, List<Channel>> e : byLoop.entrySet()) {
+            result.pending.addAll(e.getValue());
+        }
+        for (Map.Entry<EventLoop, List<Channel>> e : byLoop.entrySet()) {
+            List<Channel> onLoop = e.getValue();
+            try {
+                e.getKey().execute(() -> {
+                    for (Channel ch : onLoop) {
+                        result.close(ch);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                for (Channel ch : onLoop) {
+                    result.forced(ch);
+                }
+            }
+        }
+        if (graceful && !result.promise.isDone()) {
+            try {
+                timer.schedule(result::deadline, timeout, unit);
+            } catch (RejectedExecutionException ex) {
+                result.deadline();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The progress and outcome of closing all connections.
+     */
+    static final class CloseAll {
+
+        private final Set<Channel> pending = ConcurrentHashMap.newKeySet();
+        private final Promise<CloseAll> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        private final AtomicInteger cleanly = new AtomicInteger();
+        private final AtomicInteger forcibly = new AtomicInteger();
+        private final AtomicInteger remaining;
+        private final boolean graceful;
+        private final int total;
+        private final Set<Channel> alreadyClosing;
+        private final ChannelFutureListener onClosed = f -> closed(f.channel());
+
+        CloseAll(int total, int active, boolean graceful, Set<Channel> alreadyClosing) {
+            this.total = total;
+            this.graceful = graceful;
+            this.alreadyClosing = alreadyClosing;
+            this.remaining = new AtomicInteger(active);
+            // Channels which were open but no longer active went quietly
+            cleanly.set(total - active);
+        }
+
+        Future<CloseAll> future() {
+            return promise;
+        }
+
+        int total() {
+            return total;
+        }
+
+        int cleanly() {
+            return cleanly.get();
+        }
+
+        int forcibly() {
+            return forcibly.get();
+        }
+
+        private void close(Channel ch) {
+            ch.closeFuture().addListener(onClosed);
+            if (!graceful) {
+                forced(ch);
+            } else if (!alreadyClosing.contains(ch)) {
+                // The handler closes the channel when the server's close
+                // frame arrives
+                ch.writeAndFlush(new CloseWebSocketFrame()).addListener(
+                        ChannelFutureListener.CLOSE_ON_FAILURE);
+            }
+        }
+
+        private void closed(Channel ch) {
+            if (pending.remove(ch)) {
+                cleanly.incrementAndGet();
+                finished();
+            }
+        }
+
+        private void forced(Channel ch) {
+            if (pending.remove(ch)) {
+                forcibly.incrementAndGet();
+                ch.close();
+                finished();
+            }
+        }
+
+        private void deadline() {
+            for (Channel ch : pending) {
+                forced(ch);
+            }
+        }
+
+        private void finished() {
+            if (remaining.decrementAndGet() == 0) {
+                promise.trySuccess(this);
+            }
+        }
+    }
+}
@@ -48,6 +48,19 @@ public interface FrameCallback<T> {
      */
     T onMessage(WebSocketFrame frame, T data, ChannelControl channel) throws Exception;
 
+    /**
+     * Called when the socket has no more data to read for now, after
+     * {@link #onMessage(io.netty.handler.codec.http.websocketx.WebSocketFrame, java.lang.Object, com.mastfrog.blather.ChannelControl)}
+     * has been called for every frame decoded from that read. Useful for
+     * callbacks which accumulate work and want to process it, or flush
+     * replies, once per read rather than once per frame.
+     *
+     * @param channel The channel controller
+     * @throws Exception If something goes wrong
+     */
+    default void onReadComplete(ChannelControl channel) throws Exception {
+    }
+
     /**
      * Called once the websocket handshake is complete.
      */
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Records every websocket frame a connection sends and receives to a
+ * memory-mapped file, for replay with {@link SessionReplay}. The file has a
+ * fixed maximum size; once it is full, further frames are not recorded.
+ * Each record is the nanoseconds since capture started, a flags byte
+ * (outbound, final fragment), the websocket opcode, the payload length and
+ * the payload.
+ *
+ * @author Tim Boudreau
+ */
+final class FrameCapture extends ChannelDuplexHandler {
+
+    private static final int MAGIC = 0x424C4331;
+    private static final int HEADER = 32;
+    private static final int END_OFFSET = 8;
+    private static final int STARTED_OFFSET = 16;
+    private static final int RECORD_HEADER = 14;
+    private static final byte OUTBOUND = 1;
+    private static final byte FINAL = 2;
+    // Positions in the file are ints, so header and records must fit in one
+    static final int MAX_BYTES = Integer.MAX_VALUE - HEADER;
+    private final MappedByteBuffer map;
+    private final Ticker ticker;
+    private final long start;
+    private int end = HEADER;
+
+    FrameCapture(Path file, int maxBytes) throws IOException {
+        this(file, maxBytes, Ticker.SYSTEM);
+    }
+
+    FrameCapture(Path file, int maxBytes, Ticker ticker) throws IOException {
+        if (maxBytes < RECORD_HEADER || maxBytes > MAX_BYTES) {
+            throw new IllegalArgumentException("Capture size must be between "
+                    + RECORD_HEADER + " and " + MAX_BYTES + ": " + maxBytes);
+        }
+        try (FileChannel ch = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+            map = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) maxBytes);
+        }
+        this.ticker = ticker;
+        start = ticker.nanoTime();
+        map.putInt(0, MAGIC);
+        map.putLong(END_OFFSET, end);
+        map.putLong(STARTED_OFFSET, System.currentTimeMillis());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof WebSocketFrame) {
+            record((WebSocketFrame) msg, false);
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof WebSocketFrame) {
+            record((WebSocketFrame) msg, true);
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        map.force();
+        super.channelInactive(ctx);
+    }
+
+    private void record(WebSocketFrame frame, boolean outbound) {
+        ByteBuf content = frame.content();
+        int length = content.readableBytes();
+        if (map.capacity() - end - RECORD_HEADER < length) {
+            return;
+        }
+        map.putLong(end, ticker.nanoTime() - start);
+        map.put(end + 8, (byte) ((outbound ? OUTBOUND : 0) | (frame.isFinalFragment() ? FINAL : 0)));
+        map.put(end + 9, opcode(frame));
+        map.putInt(end + 10, length);
+        ByteBuffer dest = map.duplicate();
+        dest.position(end + RECORD_HEADER);
+        dest.limit(end + RECORD_HEADER + length);
+        content.getBytes(content.readerIndex(), dest);
+        end += RECORD_HEADER + length;
+        // Publish the record only once its bytes are in place
+        map.putLong(END_OFFSET, end);
+    }
+
+    private static byte opcode(WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame) {
+            return 1;
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            return 2;
+        } else if (frame instanceof CloseWebSocketFrame) {
+            return 8;
+        } else if (frame instanceof PingWebSocketFrame) {
+            return 9;
+        } else if (frame instanceof PongWebSocketFrame) {
+            return 10;
+        }
+        return 0;
+    }
+
+    /**
+     * Open a capture file for reading.
+     *
+     * @param file The file
+     * @return A reader positioned before the first record
+     * @throws IOException If the file cannot be read or is not a capture
+     */
+    static Reader read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, READ)) {
+            if (ch.size() < HEADER) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            long end = map.getLong(END_OFFSET);
+            if (map.getInt(0) != MAGIC || end < HEADER || end > ch.size()) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            return new Reader(map, (int) end);
+        }
+    }
+
+    /**
+     * Iterates the records in a capture file.
+     */
+    static final class Reader {
+
+        private final MappedByteBuffer map;
+        private final int end;
+        private int position = -1;
+        private int next = HEADER;
+
+        Reader(MappedByteBuffer map, int end) {
+            this.map = map;
+            this.end = end;
+        }
+
+        boolean next() {
+            if (next + RECORD_HEADER > end) {
+                return false;
+            }
+            position = next;
+            next = position + RECORD_HEADER + map.getInt(position + 10);
+            return true;
+        }
+
+        long nanos() {
+            return map.getLong(position);
+        }
+
+        boolean outbound() {
+            return (map.get(position + 8) & OUTBOUND) != 0;
+        }
+
+        int opcode() {
+            return map.get(position + 9);
+        }
+
+        /**
+         * Create a frame for the current record.
+         *
+         * @param alloc The allocator to copy the payload into
+         * @return A frame
+         */
+        WebSocketFrame frame(ByteBufAllocator alloc) {
+            boolean fin = (map.get(position + 8) & FINAL) != 0;
+            int length = map.getInt(position + 10);
+            ByteBuf buf = alloc.buffer(length);
+            ByteBuffer src = map.duplicate();
+            src.position(position + RECORD_HEADER);
+            src.limit(position + RECORD_HEADER + length);
+            buf.writeBytes(src);
+            switch (opcode()) {
+                case 1:
+                    return new TextWebSocketFrame(fin, 0, buf);
+                case 2:
+                    return new BinaryWebSocketFrame(fin, 0, buf);
+                case 8:
+                    return new CloseWebSocketFrame(fin, 0, buf);
+                case 9:
+                    return new PingWebSocketFrame(fin, 0, buf);
+                case 10:
+                    return new PongWebSocketFrame(fin, 0, buf);
+                default:
+                    return new ContinuationWebSocketFrame(fin, 0, buf);
+            }
+        }
+    }
+}
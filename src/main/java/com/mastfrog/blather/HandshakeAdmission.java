@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.time.Duration;
+
+/**
+ * Statistics about connection attempts waiting for, or holding, one of the
+ * limited number of concurrent connect-and-handshake slots configured with
+ * {@link Blather#limitConcurrentHandshakes(int, int)}.
+ *
+ * @author Tim Boudreau
+ */
+public interface HandshakeAdmission {
+
+    /**
+     * Get the number of connection attempts waiting to start.
+     *
+     * @return The queue depth
+     */
+    int queued();
+
+    /**
+     * Get the number of connection attempts which have started but not yet
+     * completed the websocket handshake.
+     *
+     * @return The number in progress
+     */
+    int inProgress();
+
+    /**
+     * Get the total number of connection attempts which have been admitted.
+     *
+     * @return A count
+     */
+    long admitted();
+
+    /**
+     * Get the mean time admitted connection attempts spent waiting.
+     *
+     * @return A duration
+     */
+    Duration averageWait();
+
+    /**
+     * Get the longest time any admitted connection attempt spent waiting.
+     *
+     * @return A duration
+     */
+    Duration maxWait();
+}
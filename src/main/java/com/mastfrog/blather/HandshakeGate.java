@@ -0,0 +1,309 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of connection attempts which may be connecting or
+ * handshaking at once, in total and per host, so that when a server restarts
+ * and every client reconnects at the same moment, the attempts are spread out
+ * rather than all competing for the same CPU on both ends. Attempts over the
+ * limit wait in a FIFO queue; an attempt for a host which is at its per-host
+ * limit does not hold up attempts for other hosts queued behind it. An
+ * attempt which has neither completed nor failed by the handshake timeout
+ * gives up its slot, so a hung server cannot stall the queue; the attempt
+ * itself is left to fail or succeed on its own.
+ *
+ * @author Tim Boudreau
+ */
+final class HandshakeGate implements HandshakeAdmission {
+
+    static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // Null in tests, which call expire() themselves
+    private final ScheduledExecutorService timers;
+    private final Ticker ticker;
+    private final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+    // Admitted tickets, oldest first, so the first is the next to time out
+    private final Set<Ticket> running = new LinkedHashSet<>();
+    private final Map<String, Integer> perHost = new HashMap<>();
+    private final Runnable expire = this::expire;
+    private int maxConcurrent = Integer.MAX_VALUE;
+    private int maxPerHost = Integer.MAX_VALUE;
+    private long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS);
+    private int inProgress;
+    private long admitted;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private boolean expiryScheduled;
+
+    HandshakeGate(ScheduledExecutorService timers) {
+        this(timers, Ticker.SYSTEM);
+    }
+
+    HandshakeGate(ScheduledExecutorService timers, Ticker ticker) {
+        this.timers = timers;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Determine if any limit has been set; if not, connection attempts need
+     * not go through the gate at all.
+     *
+     * @return true if attempts are limited
+     */
+    synchronized boolean limited() {
+        return maxConcurrent != Integer.MAX_VALUE || maxPerHost != Integer.MAX_VALUE;
+    }
+
+    void limit(int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("Limits must be at least 1: "
+                    + maxConcurrent + ", " + maxPerHost);
+        }
+        synchronized (this) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxPerHost = maxPerHost;
+        }
+        drain();
+    }
+
+    void timeout(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("Timeout must be positive: " + millis);
+        }
+        synchronized (this) {
+            timeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    Ticket ticket(String host, Executor runOn, Runnable connect) {
+        return new Ticket(host, runOn, connect);
+    }
+
+    void submit(Ticket ticket) {
+        synchronized (this) {
+            queue.add(ticket);
+        }
+        // Admits the ticket now if its host has room, even if tickets for
+        // a host at its limit are queued ahead of it
+        drain();
+    }
+
+    private boolean canAdmit(String host) {
+        return inProgress < maxConcurrent && perHost.getOrDefault(host, 0) < maxPerHost;
+    }
+
+    private void admit(Ticket ticket, long now) {
+        ticket.state = Ticket.ADMITTED;
+        ticket.deadline = now + timeoutNanos;
+        running.add(ticket);
+        inProgress++;
+        perHost.merge(ticket.host, 1, Integer::sum);
+        admitted++;
+        long waited = now - ticket.created;
+        totalWaitNanos += waited;
+        maxWaitNanos = Math.max(maxWaitNanos, waited);
+    }
+
+    private void drain() {
+        List<Ticket> ready = null;
+        long expireIn = -1;
+        synchronized (this) {
+            long now = ticker.nanoTime();
+            for (Iterator<Ticket> it = queue.iterator(); it.hasNext() && inProgress < maxConcurrent;) {
+                Ticket t = it.next();
+                if (canAdmit(t.host)) {
+                    it.remove();
+                    admit(t, now);
+                    if (ready == null) {
+                        ready = new ArrayList<>();
+                    }
+                    ready.add(t);
+                }
+            }
+            if (ready != null) {
+                expireIn = scheduleExpiry(now);
+            }
+        }
+        if (expireIn >= 0) {
+            timers.schedule(expire, expireIn, TimeUnit.NANOSECONDS);
+        }
+        if (ready != null) {
+            for (Ticket t : ready) {
+                t.runOn.execute(t.task);
+            }
+        }
+    }
+
+    /**
+     * Claim the expiry timer if none is pending and something is running, so
+     * there is at most one timer however many attempts are admitted.
+     *
+     * @return The delay for the timer, or -1 if it should not be scheduled
+     */
+    private long scheduleExpiry(long now) {
+        if (timers == null || expiryScheduled || running.isEmpty()) {
+            return -1;
+        }
+        expiryScheduled = true;
+        return Math.max(0, running.iterator().next().deadline - now);
+    }
+
+    /**
+     * Give up the slots of admitted tickets which are past their deadline.
+     */
+    void expire() {
+        boolean freed = false;
+        long expireIn;
+        synchronized (this) {
+            expiryScheduled = false;
+            long now = ticker.nanoTime();
+            for (Iterator<Ticket> it = running.iterator(); it.hasNext();) {
+                Ticket t = it.next();
+                if (t.deadline - now > 0) {
+                    break;
+                }
+                it.remove();
+                t.state = Ticket.DONE;
+                freeSlot(t);
+                freed = true;
+            }
+            expireIn = scheduleExpiry(now);
+        }
+        if (expireIn >= 0) {
+            timers.schedule(expire, expireIn, TimeUnit.NANOSECONDS);
+        }
+        if (freed) {
+            drain();
+        }
+    }
+
+    private void freeSlot(Ticket ticket) {
+        inProgress--;
+        perHost.computeIfPresent(ticket.host, (h, count) -> count == 1 ? null : count - 1);
+    }
+
+    private void release(Ticket ticket) {
+        synchronized (this) {
+            int state = ticket.state;
+            ticket.state = Ticket.DONE;
+            if (state == Ticket.QUEUED) {
+                queue.remove(ticket);
+                return;
+            } else if (state == Ticket.DONE) {
+                return;
+            }
+            running.remove(ticket);
+            freeSlot(ticket);
+        }
+        drain();
+    }
+
+    @Override
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    @Override
+    public synchronized int inProgress() {
+        return inProgress;
+    }
+
+    @Override
+    public synchronized long admitted() {
+        return admitted;
+    }
+
+    @Override
+    public synchronized Duration averageWait() {
+        return admitted == 0 ? Duration.ZERO : Duration.ofNanos(totalWaitNanos / admitted);
+    }
+
+    @Override
+    public synchronized Duration maxWait() {
+        return Duration.ofNanos(maxWaitNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HandshakeGate(" + inProgress + " of " + maxConcurrent + " in progress, "
+                + queue.size() + " queued, max " + maxPerHost + " per host)";
+    }
+
+    final class Ticket {
+
+        static final int QUEUED = 0;
+        static final int ADMITTED = 1;
+        static final int DONE = 2;
+        final String host;
+        final Executor runOn;
+        final Runnable task;
+        final long created = ticker.nanoTime();
+        long deadline;
+        int state = QUEUED;
+
+        Ticket(String host, Executor runOn, Runnable task) {
+            this.host = host;
+            this.runOn = runOn;
+            this.task = task;
+        }
+
+        /**
+         * Give up this ticket's slot once the handshake has completed or
+         * failed, or remove it from the queue if it has not started yet;
+         * calls after the first are ignored.
+         */
+        void release() {
+            HandshakeGate.this.release(this);
+        }
+
+        /**
+         * Remove this ticket from the queue if it has not been admitted.
+         *
+         * @return true if it had not been admitted and now never will be
+         */
+        boolean cancel() {
+            synchronized (HandshakeGate.this) {
+                if (state != QUEUED) {
+                    return false;
+                }
+                state = DONE;
+                queue.remove(this);
+                return true;
+            }
+        }
+    }
+}
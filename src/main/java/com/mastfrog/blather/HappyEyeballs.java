@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races connection attempts to the addresses of a host, in the manner of
+ * RFC 8305: the first address is tried immediately, and each subsequent one
+ * is tried when the previous attempt fails or after a short delay, whichever
+ * comes first. The first connection to succeed wins, and the rest are
+ * closed. So connection setup takes as long as the fastest reachable
+ * address, not as long as it takes an unreachable first address to time out.
+ * <p>
+ * The bootstrap's handler is installed on every attempt, so it must be
+ * sharable; the real pipeline should be set up on the winning channel.
+ *
+ * @author Tim Boudreau
+ */
+final class HappyEyeballs {
+
+    static final long ATTEMPT_DELAY_MILLIS = 250;
+    private final Bootstrap bootstrap;
+    private final EventLoop loop;
+    private final List<InetAddress> addresses;
+    private final int port;
+    private final Promise<Channel> promise;
+    private final List<ChannelFuture> attempts = new ArrayList<>();
+    private ScheduledFuture<?> timer;
+    private int failed;
+    private int next;
+
+    private HappyEyeballs(Bootstrap bootstrap, EventLoop loop, List<InetAddress> addresses, int port) {
+        this.bootstrap = bootstrap;
+        this.loop = loop;
+        this.addresses = addresses;
+        this.port = port;
+        this.promise = loop.newPromise();
+    }
+
+    static Future<Channel> connect(Bootstrap bootstrap, EventLoop loop, List<InetAddress> addresses, int port) {
+        if (addresses.isEmpty()) {
+            return loop.newFailedFuture(new IllegalArgumentException("No addresses"));
+        }
+        HappyEyeballs result = new HappyEyeballs(bootstrap, loop, addresses, port);
+        result.attemptNext();
+        return result.promise;
+    }
+
+    private synchronized void attemptNext() {
+        if (promise.isDone() || next >= addresses.size()) {
+            return;
+        }
+        ChannelFuture f = bootstrap.connect(new InetSocketAddress(addresses.get(next++), port));
+        attempts.add(f);
+        f.addListener((ChannelFutureListener) this::attemptDone);
+        if (next < addresses.size()) {
+            timer = loop.schedule(this::attemptNext, ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void attemptDone(ChannelFuture f) {
+        if (f.isSuccess()) {
+            if (promise.trySuccess(f.channel())) {
+                closeLosers(f);
+            } else {
+                f.channel().close();
+            }
+            return;
+        }
+        boolean tryNow;
+        synchronized (this) {
+            failed++;
+            if (failed == addresses.size()) {
+                promise.tryFailure(f.cause());
+                return;
+            }
+            // Don't wait out the delay if the current attempt already failed
+            tryNow = failed == attempts.size() && next < addresses.size();
+            if (tryNow && timer != null) {
+                timer.cancel(false);
+            }
+        }
+        if (tryNow) {
+            attemptNext();
+        }
+    }
+
+    private void closeLosers(ChannelFuture winner) {
+        List<ChannelFuture> losers;
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            losers = new ArrayList<>(attempts);
+        }
+        for (ChannelFuture f : losers) {
+            if (f != winner) {
+                f.channel().close();
+            }
+        }
+    }
+}
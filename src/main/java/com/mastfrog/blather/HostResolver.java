@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches host name lookups for a time-to-live shared by every client created
+ * by a Blather, so reconnects do not repeat DNS queries, and orders the
+ * addresses for a host so that address families alternate, as happy eyeballs
+ * (RFC 8305) connection racing wants.
+ *
+ * @author Tim Boudreau
+ */
+final class HostResolver {
+
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Ticker ticker;
+    private final Lookup lookup;
+    private volatile long ttlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL_MILLIS);
+
+    HostResolver() {
+        this(Ticker.SYSTEM, InetAddress::getAllByName);
+    }
+
+    HostResolver(Ticker ticker, Lookup lookup) {
+        this.ticker = ticker;
+        this.lookup = lookup;
+    }
+
+    /**
+     * Looks up every address for a host name.
+     */
+    interface Lookup {
+
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    void ttl(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative ttl " + millis);
+        }
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        if (millis == 0) {
+            cache.clear();
+        }
+    }
+
+    List<InetAddress> resolve(String host) throws UnknownHostException {
+        long now = ticker.nanoTime();
+        Entry e = cache.get(host);
+        if (e != null && e.expires - now > 0) {
+            return e.addresses;
+        }
+        List<InetAddress> result = interleave(lookup.lookup(host));
+        long ttl = ttlNanos;
+        if (ttl > 0) {
+            cache.put(host, new Entry(result, now + ttl));
+        }
+        return result;
+    }
+
+    void forget(String host) {
+        cache.remove(host);
+    }
+
+    /**
+     * Reorder addresses so IPv6 and IPv4 alternate, starting with the family
+     * of the first address the system resolver returned, preserving the
+     * resolver's order within each family.
+     *
+     * @param addresses Addresses
+     * @return A list
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return Collections.unmodifiableList(Arrays.asList(addresses));
+        }
+        List<InetAddress> preferred = new ArrayList<>(addresses.length);
+        List<InetAddress> other = new ArrayList<>(addresses.length);
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress a : addresses) {
+            if ((a instanceof Inet6Address) == firstIsV6) {
+                preferred.add(a);
+            } else {
+                other.add(a);
+            }
+        }
+        List<InetAddress> result = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                result.add(preferred.get(i));
+            }
+            if (i < other.size()) {
+                result.add(other.get(i));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static final class Entry {
+
+        final List<InetAddress> addresses;
+        final long expires;
+
+        Entry(List<InetAddress> addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+}
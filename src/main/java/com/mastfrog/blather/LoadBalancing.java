@@ -0,0 +1,47 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+/**
+ * Strategies for choosing which endpoint a new connection is made to, for
+ * clients backed by more than one address.
+ *
+ * @author Tim Boudreau
+ */
+public enum LoadBalancing {
+    /**
+     * Prefer the endpoint with the fewest requests assigned to it whose
+     * connections have not yet failed or closed, breaking ties by measured
+     * handshake latency.
+     */
+    LEAST_CONNECTIONS,
+    /**
+     * Prefer endpoints with a low recently measured time to connect and
+     * complete the websocket handshake, weighted by the number of
+     * connections each already has, so faster endpoints get proportionally
+     * more connections rather than all of them. Endpoints which have not been
+     * measured yet are tried first.
+     */
+    LOWEST_LATENCY
+}
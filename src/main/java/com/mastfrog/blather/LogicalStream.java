@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+/**
+ * One logical stream of a {@link MultiplexedConnection}. Messages sent with
+ * <code>send()</code> are wrapped in the stream's envelope; <code>close()</code>
+ * closes only this stream, not the connection it is carried over.
+ *
+ * @author Tim Boudreau
+ */
+public interface LogicalStream extends ChannelControl {
+
+    /**
+     * Get the stream id.
+     *
+     * @return The id
+     */
+    int id();
+
+    /**
+     * Get the number of messages the peer currently allows us to send on
+     * this stream before more credit is granted.
+     *
+     * @return The credit
+     */
+    int sendCredit();
+
+    /**
+     * Get the number of messages waiting for credit to be sent.
+     *
+     * @return The number of queued messages
+     */
+    int queued();
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.internal.PlatformDependent;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Outbound messages which have not yet been written to a connection, kept in
+ * a ring buffer in a memory-mapped file so they survive disconnects and
+ * restarts without occupying the heap. Positions are logical offsets which
+ * only ever increase; the physical offset is the position modulo the
+ * capacity. Each record is a four byte length, whose high bit marks a text
+ * message, followed by the payload.
+ *
+ * @author Tim Boudreau
+ */
+final class MessageJournal {
+
+    private static final int MAGIC = 0x424C4A31;
+    private static final int HEADER = 32;
+    private static final int TEXT = 0x80000000;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final Path file;
+    private long head;
+    private long tail;
+    private boolean closed;
+
+    MessageJournal(Path file, int capacity) throws IOException {
+        if (capacity < 16) {
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        }
+        this.file = file;
+        this.capacity = capacity;
+        try (FileChannel ch = FileChannel.open(file, CREATE, READ, WRITE)) {
+            boolean existing = ch.size() > 0;
+            if (existing && ch.size() != HEADER + capacity) {
+                throw new IOException("Journal " + file + " is " + ch.size()
+                        + " bytes, not " + (HEADER + capacity));
+            }
+            // The mapping remains valid after the channel is closed
+            map = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity);
+            if (existing) {
+                if (map.getInt(0) != MAGIC || map.getInt(CAPACITY_OFFSET) != capacity) {
+                    throw new IOException("Not a journal with capacity " + capacity + ": " + file);
+                }
+                head = map.getLong(HEAD_OFFSET);
+                tail = map.getLong(TAIL_OFFSET);
+                if (head < 0 || tail < head || tail - head > capacity) {
+                    throw new IOException("Corrupt journal " + file + ": head "
+                            + head + " tail " + tail);
+                }
+            } else {
+                map.putInt(0, MAGIC);
+                map.putInt(CAPACITY_OFFSET, capacity);
+                map.putLong(HEAD_OFFSET, 0);
+                map.putLong(TAIL_OFFSET, 0);
+            }
+        }
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param content The payload, which is not consumed or released
+     * @param text Whether it is a text message
+     * @throws IOException If the journal does not have room for it
+     */
+    synchronized void append(ByteBuf content, boolean text) throws IOException {
+        checkOpen();
+        int length = content.readableBytes();
+        if (tail - head + 4 + length > capacity) {
+            throw new IOException("Journal " + file + " is full - " + (tail - head)
+                    + " of " + capacity + " bytes used, cannot add " + length);
+        }
+        putInt(tail, text ? length | TEXT : length);
+        put(tail + 4, content, content.readerIndex(), length);
+        tail += 4 + length;
+        // Publish the record only once its bytes are in place
+        map.putLong(TAIL_OFFSET, tail);
+    }
+
+    /**
+     * Discard every record before the passed position, once the messages in
+     * them have been written.
+     *
+     * @param position The position after the last record to discard
+     */
+    synchronized void trim(long position) {
+        if (!closed && position > head && position <= tail) {
+            head = position;
+            map.putLong(HEAD_OFFSET, head);
+        }
+    }
+
+    synchronized long head() {
+        return head;
+    }
+
+    synchronized long tail() {
+        return tail;
+    }
+
+    synchronized boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Get the position of the record after the one at the passed position.
+     *
+     * @param position The position of a record
+     * @return The position of the next record
+     */
+    synchronized long next(long position) {
+        checkOpen();
+        return position + 4 + (getInt(position) & ~TEXT);
+    }
+
+    /**
+     * Read the record at the passed position as a websocket frame.
+     *
+     * @param position The position of a record
+     * @param alloc The allocator for the frame's content
+     * @return A frame
+     */
+    synchronized WebSocketFrame frameAt(long position, ByteBufAllocator alloc) {
+        checkOpen();
+        if (position < head || position >= tail) {
+            throw new IllegalArgumentException("No record at " + position
+                    + " in " + head + " to " + tail);
+        }
+        int header = getInt(position);
+        int length = header & ~TEXT;
+        ByteBuf buf = alloc.buffer(length);
+        get(position + 4, buf, length);
+        return (header & TEXT) != 0 ? new TextWebSocketFrame(buf) : new BinaryWebSocketFrame(buf);
+    }
+
+    /**
+     * Write changes to disk.
+     */
+    synchronized void force() {
+        if (!closed) {
+            map.force();
+        }
+    }
+
+    /**
+     * Write changes to disk and unmap the file, rather than leaving the
+     * mapping to be released whenever the buffer is garbage collected, so
+     * the file can be opened again at once. Calls after the first are
+     * ignored.
+     */
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            map.force();
+            PlatformDependent.freeDirectBuffer(map);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Journal " + file + " is closed");
+        }
+    }
+
+    private int physical(long position) {
+        return HEADER + (int) (position % capacity);
+    }
+
+    private void putInt(long position, int value) {
+        for (int i = 0; i < 4; i++) {
+            map.put(physical(position + i), (byte) (value >>> (24 - i * 8)));
+        }
+    }
+
+    private int getInt(long position) {
+        int result = 0;
+        for (int i = 0; i < 4; i++) {
+            result = (result << 8) | (map.get(physical(position + i)) & 0xFF);
+        }
+        return result;
+    }
+
+    private void put(long position, ByteBuf src, int srcIndex, int length) {
+        while (length > 0) {
+            int at = physical(position);
+            int count = Math.min(length, HEADER + capacity - at);
+            ByteBuffer dest = map.duplicate();
+            dest.position(at);
+            dest.limit(at + count);
+            src.getBytes(srcIndex, dest);
+            position += count;
+            srcIndex += count;
+            length -= count;
+        }
+    }
+
+    private void get(long position, ByteBuf dest, int length) {
+        while (length > 0) {
+            int at = physical(position);
+            int count = Math.min(length, HEADER + capacity - at);
+            ByteBuffer src = map.duplicate();
+            src.position(at);
+            src.limit(at + count);
+            dest.writeBytes(src);
+            position += count;
+            length -= count;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import static com.mastfrog.util.preconditions.Checks.notNull;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Routes JSON messages to handlers based on the value of a discriminator
+ * field, for servers which multiplex many message types over one connection.
+ * The discriminator is found with Jackson's streaming parser, reading only as
+ * much of the message as needed to find it; the message is then bound only to
+ * the type registered for that value, ignoring properties that type does not
+ * declare. Messages with no route are skipped without being bound at all
+ * (or passed to the <code>otherwise()</code> handler if there is one).
+ * Messages which are not valid JSON are reported to the request's error
+ * handler, as they would be for any other JSON callback.
+ * <pre>
+ * request.onMessage(MessageRouter.byField("type")
+ *         .route("trade", Trade.class, this::onTrade)
+ *         .route("quote", Quote.class, this::onQuote));
+ * </pre>
+ * The discriminator must be a top-level property of a JSON object; it is
+ * found fastest if the server sends it first.
+ *
+ * @author Tim Boudreau
+ */
+public final class MessageRouter {
+
+    private final String field;
+    private final Map<String, Route<?>> routes = new LinkedHashMap<>();
+    private WebsocketTextHandler otherwise;
+
+    private MessageRouter(String field) {
+        this.field = field;
+    }
+
+    /**
+     * Create a router which dispatches on the value of the passed top-level
+     * property.
+     *
+     * @param field The property name
+     * @return A router
+     */
+    public static MessageRouter byField(String field) {
+        return new MessageRouter(notNull("field", field));
+    }
+
+    /**
+     * Add a route for messages whose discriminator has the passed value
+     * (non-string values such as numbers are matched by their JSON text).
+     *
+     * @param <T> The type to bind matching messages to
+     * @param value The discriminator value
+     * @param type The type to bind matching messages to
+     * @param handler The handler for matching messages
+     * @return this
+     */
+    public <T> MessageRouter route(String value, Class<T> type, WebsocketMessageHandler<T> handler) {
+        notNull("value", value);
+        if (routes.containsKey(value)) {
+            throw new IllegalArgumentException("Already have a route for '" + value + "'");
+        }
+        routes.put(value, new Route<>(notNull("type", type), notNull("handler", handler)));
+        return this;
+    }
+
+    /**
+     * Set a handler for messages which have no route, or no discriminator,
+     * or are JSON but not JSON objects. If not set, such messages are
+     * ignored.
+     *
+     * @param handler A handler
+     * @return this
+     */
+    public MessageRouter otherwise(WebsocketTextHandler handler) {
+        this.otherwise = notNull("handler", handler);
+        return this;
+    }
+
+    String field() {
+        return field;
+    }
+
+    Map<String, Route<?>> routes() {
+        return Collections.unmodifiableMap(routes);
+    }
+
+    WebsocketTextHandler otherwise() {
+        return otherwise;
+    }
+
+    static final class Route<T> {
+
+        final Class<T> type;
+        final WebsocketMessageHandler<T> handler;
+
+        Route(Class<T> type, WebsocketMessageHandler<T> handler) {
+            this.type = type;
+            this.handler = handler;
+        }
+    }
+}
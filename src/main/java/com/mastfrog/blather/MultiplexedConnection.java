@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+/**
+ * Many logical streams carried over a single websocket connection, so that
+ * thousands of subscriptions can share one socket. Obtain one from
+ * {@link WebsocketHostClient#multiplex(String)}. The server must speak the
+ * same envelope format: every message is a binary frame consisting of
+ * <ul>
+ * <li>a 4-byte big-endian stream id,</li>
+ * <li>a 1-byte kind - 0 for data, 1 for credit, 2 for close,</li>
+ * <li>the payload - for data, the message (UTF-8 text or JSON); for credit,
+ * a 4-byte big-endian count of additional data messages the sender is willing
+ * to receive on the stream; for close, nothing.</li>
+ * </ul>
+ * A stream is opened by granting the peer credit for it; neither side may
+ * send data on a stream until the other has granted it credit, and each data
+ * message consumes one unit. Messages sent on a stream with no credit are
+ * queued until the peer grants more; credit for inbound messages is granted
+ * back to the peer at the end of each read, once the stream's handler has
+ * consumed at least half of its initial credit. A peer which sends more
+ * messages than it has credit for is a protocol error, and the connection
+ * is closed.
+ *
+ * @author Tim Boudreau
+ */
+public interface MultiplexedConnection extends AutoCloseable {
+
+    /**
+     * Open a logical stream. If the connection is not yet established, the
+     * stream will be opened as soon as it is.
+     *
+     * @param <T> The type to convert the stream's message payloads to
+     * @param streamId The id of the stream, which must not already be open
+     * @param type The type to convert the stream's message payloads to
+     * @param handler The handler for messages on the stream
+     * @return The stream
+     */
+    <T> LogicalStream open(int streamId, Class<T> type, WebsocketMessageHandler<T> handler);
+
+    /**
+     * Get an open stream.
+     *
+     * @param streamId The stream id
+     * @return The stream, or null if not open
+     */
+    LogicalStream stream(int streamId);
+
+    /**
+     * Get the number of open streams.
+     *
+     * @return The count
+     */
+    int streamCount();
+
+    /**
+     * Get the request for the underlying connection, to wait on or add
+     * error and disconnect handlers to.
+     *
+     * @return The request
+     */
+    WebsocketClientRequest request();
+
+    /**
+     * Close the underlying connection, and with it all streams.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,431 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import static com.mastfrog.util.preconditions.Checks.notNull;
+import com.mastfrog.util.preconditions.Exceptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.PromiseNotifier;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implementation of MultiplexedConnection - see that interface for the
+ * envelope format and credit rules.
+ *
+ * @author Tim Boudreau
+ */
+final class Multiplexer implements MultiplexedConnection {
+
+    static final byte DATA = 0;
+    static final byte CREDIT = 1;
+    static final byte CLOSE = 2;
+    private static final int HEADER_LENGTH = 5;
+    private final WebSocketClientsImpl clients;
+    private final WebsocketClientRequest request;
+    private final int initialCredit;
+    private final int replenishThreshold;
+    private final IntObjectMap<StreamImpl> streams = new IntObjectHashMap<>();
+    // Streams which received data in the current read - event loop only
+    private final List<StreamImpl> consumedThisRead = new ArrayList<>();
+    private volatile ChannelControl connection;
+
+    /**
+     * Create a multiplexer and start the request's connection.
+     *
+     * @param clients The clients
+     * @param request A request which has not been started
+     * @param initialCredit The credit to grant each stream
+     * @return A multiplexer
+     */
+    static Multiplexer start(WebSocketClientsImpl clients, WebsocketClientRequest request, int initialCredit) {
+        Multiplexer result = new Multiplexer(clients, request, initialCredit);
+        request.onMessage(result.new Demultiplexer());
+        return result;
+    }
+
+    Multiplexer(WebSocketClientsImpl clients, WebsocketClientRequest request, int initialCredit) {
+        if (initialCredit < 1) {
+            throw new IllegalArgumentException("Initial credit must be at least 1: " + initialCredit);
+        }
+        this.clients = clients;
+        this.request = request;
+        this.initialCredit = initialCredit;
+        this.replenishThreshold = Math.max(1, initialCredit / 2);
+    }
+
+    @Override
+    public <T> LogicalStream open(int streamId, Class<T> type, WebsocketMessageHandler<T> handler) {
+        StreamImpl result = new StreamImpl(streamId);
+        result.nextCallback(notNull("handler", handler), notNull("type", type));
+        ChannelControl conn;
+        synchronized (this) {
+            if (streams.containsKey(streamId)) {
+                throw new IllegalStateException("Stream " + streamId + " is already open");
+            }
+            streams.put(streamId, result);
+            conn = connection;
+        }
+        // If not connected yet, the stream is opened along with the others
+        // once the handshake completes
+        if (conn != null) {
+            conn.send(control(conn.channel(), streamId, CREDIT, initialCredit), Priority.HIGH);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized LogicalStream stream(int streamId) {
+        return streams.get(streamId);
+    }
+
+    @Override
+    public synchronized int streamCount() {
+        return streams.size();
+    }
+
+    @Override
+    public WebsocketClientRequest request() {
+        return request;
+    }
+
+    @Override
+    public void close() {
+        try {
+            request.close();
+        } catch (Exception ex) {
+            Exceptions.chuck(ex);
+        }
+    }
+
+    private synchronized StreamImpl remove(int streamId) {
+        return streams.remove(streamId);
+    }
+
+    static WebSocketFrame control(Channel ch, int streamId, byte kind, int credit) {
+        ByteBuf buf = ch.alloc().buffer(kind == CREDIT ? HEADER_LENGTH + 4 : HEADER_LENGTH);
+        buf.writeInt(streamId).writeByte(kind);
+        if (kind == CREDIT) {
+            buf.writeInt(credit);
+        }
+        return new BinaryWebSocketFrame(buf);
+    }
+
+    static WebSocketFrame envelope(Channel ch, int streamId, WebSocketFrame payload) {
+        ByteBuf header = ch.alloc().buffer(HEADER_LENGTH).writeInt(streamId).writeByte(DATA);
+        CompositeByteBuf buf = ch.alloc().compositeBuffer(2);
+        buf.addComponents(true, header, payload.content());
+        return new BinaryWebSocketFrame(buf);
+    }
+
+    final class Demultiplexer implements FrameCallback<WebSocketFrame> {
+
+        @Override
+        public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl ctrl) throws Exception {
+            ByteBuf content = data.content();
+            if (content.readableBytes() < HEADER_LENGTH) {
+                throw new IOException("Truncated envelope of " + content.readableBytes() + " bytes");
+            }
+            int id = content.readInt();
+            byte kind = content.readByte();
+            StreamImpl stream;
+            synchronized (Multiplexer.this) {
+                stream = streams.get(id);
+            }
+            if (stream == null) {
+                // Closed on our side while the peer was still sending
+                return null;
+            }
+            switch (kind) {
+                case DATA:
+                    if (stream.receive(content.slice(), ctrl)) {
+                        consumedThisRead.add(stream);
+                    }
+                    break;
+                case CREDIT:
+                    stream.addCredit(content.readInt());
+                    break;
+                case CLOSE:
+                    stream.close(false);
+                    break;
+                default:
+                    throw new IOException("Unknown envelope kind " + kind + " on stream " + id);
+            }
+            return null;
+        }
+
+        @Override
+        public void onReadComplete(ChannelControl ctrl) {
+            // Credit is granted back once per read rather than per message,
+            // so a peer which sends more than it was granted in one read is
+            // caught, and a burst of messages costs one credit frame
+            for (StreamImpl stream : consumedThisRead) {
+                stream.replenish(ctrl);
+            }
+            consumedThisRead.clear();
+        }
+
+        @Override
+        public void onConnect(ChannelControl ctrl) {
+            // Also fail queued writes if the channel closes without the
+            // handler seeing it go inactive
+            ctrl.channel().closeFuture().addListener(f -> disconnected());
+            List<Integer> ids = new ArrayList<>();
+            synchronized (Multiplexer.this) {
+                connection = ctrl;
+                for (IntObjectMap.PrimitiveEntry<StreamImpl> e : streams.entries()) {
+                    ids.add(e.key());
+                }
+            }
+            // Credit frames go ahead of data queued by the rate limit, since
+            // the peer cannot send anything on a stream until it has credit
+            for (Integer id : ids) {
+                ctrl.send(control(ctrl.channel(), id, CREDIT, initialCredit), Priority.HIGH);
+            }
+        }
+
+        @Override
+        public void onDisconnect() {
+            disconnected();
+        }
+    }
+
+    private void disconnected() {
+        List<StreamImpl> all;
+        synchronized (this) {
+            connection = null;
+            all = new ArrayList<>(streams.values());
+            streams.clear();
+        }
+        for (StreamImpl stream : all) {
+            stream.close(false);
+        }
+    }
+
+    final class StreamImpl implements LogicalStream {
+
+        private final int id;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private FrameCallback<WebSocketFrame> callback;
+        private int sendCredit;
+        private int receiveCredit = initialCredit;
+        private int consumed;
+        private boolean consumedThisRead;
+        private boolean closed;
+
+        StreamImpl(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public synchronized int sendCredit() {
+            return sendCredit;
+        }
+
+        @Override
+        public synchronized int queued() {
+            return pending.size();
+        }
+
+        /**
+         * Deliver a data message.
+         *
+         * @return true if this is the first message on this stream in the
+         * current read
+         */
+        boolean receive(ByteBuf payload, ChannelControl conn) throws Exception {
+            if (--receiveCredit < 0) {
+                throw new IOException("Peer exceeded its credit on stream " + id);
+            }
+            consumed++;
+            boolean first = !consumedThisRead;
+            consumedThisRead = true;
+            // The payload is a slice of the inbound frame, which is
+            // released once this returns
+            BinaryWebSocketFrame frame = new BinaryWebSocketFrame(payload);
+            WebSocketFrame reply = callback.onMessage(frame, frame, this);
+            if (reply != null) {
+                if (reply == frame) {
+                    // An echo - the write releases it, and so does the
+                    // inbound handler
+                    reply.retain();
+                }
+                sendFrame(conn, reply);
+            }
+            return first;
+        }
+
+        void replenish(ChannelControl conn) {
+            consumedThisRead = false;
+            if (consumed >= replenishThreshold && !isClosed()) {
+                receiveCredit += consumed;
+                conn.send(control(conn.channel(), id, CREDIT, consumed), Priority.HIGH);
+                consumed = 0;
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        void addCredit(int credit) {
+            ChannelControl conn = connection;
+            synchronized (this) {
+                sendCredit += credit;
+                while (sendCredit > 0 && !pending.isEmpty()) {
+                    Pending p = pending.poll();
+                    sendCredit--;
+                    write(conn, p.frame, p.promise);
+                }
+            }
+        }
+
+        private void write(ChannelControl conn, WebSocketFrame frame, ChannelPromise promise) {
+            // Through the connection, so stream data shares its rate limit
+            // and stays in order with anything else it sends
+            conn.send(frame, Priority.NORMAL).addListener(new PromiseNotifier<Void, ChannelFuture>(promise));
+        }
+
+        ChannelFuture sendFrame(ChannelControl conn, WebSocketFrame payload) {
+            WebSocketFrame frame = envelope(conn.channel(), id, payload);
+            ChannelPromise promise = conn.channel().newPromise();
+            synchronized (this) {
+                if (closed) {
+                    frame.release();
+                    return promise.setFailure(new IllegalStateException("Stream " + id + " is closed"));
+                }
+                // Writes happen under the lock so queued messages cannot be
+                // overtaken by ones sent while the queue is being drained
+                if (sendCredit > 0 && pending.isEmpty()) {
+                    sendCredit--;
+                    write(conn, frame, promise);
+                } else {
+                    pending.add(new Pending(frame, promise));
+                }
+            }
+            return promise;
+        }
+
+        void close(boolean notifyPeer) {
+            List<Pending> abandoned;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                abandoned = new ArrayList<>(pending);
+                pending.clear();
+            }
+            remove(id);
+            IllegalStateException ex = abandoned.isEmpty() ? null
+                    : new IllegalStateException("Stream " + id + " closed before sending");
+            for (Pending p : abandoned) {
+                p.frame.release();
+                p.promise.tryFailure(ex);
+            }
+            ChannelControl conn = connection;
+            if (notifyPeer && conn != null && conn.channel().isActive()) {
+                conn.send(control(conn.channel(), id, CLOSE, 0), Priority.HIGH);
+            }
+        }
+
+        @Override
+        public <T> ChannelControl nextCallback(FrameCallback<T> cb, Class<T> type) {
+            callback = clients.callbackFor(notNull("cb", cb), notNull("type", type));
+            return this;
+        }
+
+        @Override
+        public <T> ChannelControl nextCallback(WebsocketMessageHandler<T> h, Class<T> type) {
+            FrameCallback<T> fc = new FrameCallback<T>() {
+                int ix = 0;
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public T onMessage(WebSocketFrame frame, T data, ChannelControl channel) throws Exception {
+                    return (T) h.onMessage(ix++, data, channel);
+                }
+            };
+            return nextCallback(fc, type);
+        }
+
+        @Override
+        public <T> ChannelFuture send(T message) {
+            ChannelControl conn = connection;
+            if (conn == null) {
+                throw new IllegalStateException("Not connected");
+            }
+            WebSocketFrame frame;
+            try {
+                frame = clients.toWebSocketFrame(message, conn.channel());
+            } catch (IOException ex) {
+                return conn.channel().newFailedFuture(ex);
+            }
+            return sendFrame(conn, frame);
+        }
+
+        @Override
+        public ChannelControl close() {
+            close(true);
+            return this;
+        }
+
+        @Override
+        public Channel channel() {
+            ChannelControl conn = connection;
+            return conn == null ? null : conn.channel();
+        }
+
+        @Override
+        public String toString() {
+            return "Stream " + id;
+        }
+    }
+
+    static final class Pending {
+
+        final WebSocketFrame frame;
+        final ChannelPromise promise;
+
+        Pending(WebSocketFrame frame, ChannelPromise promise) {
+            this.frame = frame;
+            this.promise = promise;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Encodes outbound messages for one connection on an encoder executor, so
+ * the event loop is only handed finished frames. Messages are encoded and
+ * written in the order they were submitted, and at most one task per
+ * connection is running on the executor at a time.
+ *
+ * @author Tim Boudreau
+ */
+final class OrderedEncoder implements Runnable {
+
+    private final Executor executor;
+    private final Channel channel;
+    private final Function<Object, WebSocketFrame> encode;
+    private final OutboundScheduler scheduler;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    OrderedEncoder(Executor executor, Channel channel, Function<Object, WebSocketFrame> encode, OutboundScheduler scheduler) {
+        this.executor = executor;
+        this.channel = channel;
+        this.encode = encode;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Queue a message - either an object to encode, or a frame which was
+     * already encoded by the caller and only needs to keep its place in
+     * line.
+     *
+     * @param message The message
+     * @param priority The priority, if the connection is rate limited
+     * @return A future which completes when the frame has been written
+     */
+    ChannelFuture send(Object message, Priority priority) {
+        ChannelPromise promise = channel.newPromise();
+        queue.add(new Pending(message, priority, promise));
+        if (pending.getAndIncrement() == 0) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                // The executor is shutting down; better to encode here than
+                // to strand everything queued behind this message
+                run();
+            }
+        }
+        return promise;
+    }
+
+    @Override
+    public void run() {
+        do {
+            write(queue.poll());
+        } while (pending.decrementAndGet() != 0);
+        channel.flush();
+    }
+
+    private void write(Pending p) {
+        WebSocketFrame frame;
+        try {
+            frame = encode.apply(p.message);
+        } catch (Exception | Error e) {
+            p.promise.setFailure(e);
+            return;
+        }
+        if (frame == null) {
+            p.promise.setSuccess();
+        } else if (scheduler != null) {
+            scheduler.send(frame, p.priority, p.promise);
+        } else {
+            channel.write(frame, p.promise);
+        }
+    }
+
+    private static final class Pending {
+
+        private final Object message;
+        private final Priority priority;
+        private final ChannelPromise promise;
+
+        Pending(Object message, Priority priority, ChannelPromise promise) {
+            this.message = message;
+            this.priority = priority;
+            this.promise = promise;
+        }
+    }
+}
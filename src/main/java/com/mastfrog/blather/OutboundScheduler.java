@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds outbound frames for one connection until its rate limit allows them
+ * to be written, highest priority first. Everything except
+ * {@link #send(WebSocketFrame, Priority, ChannelPromise)} runs on the
+ * channel's event loop, so none of the state here needs synchronization.
+ *
+ * @author Tim Boudreau
+ */
+final class OutboundScheduler implements Runnable {
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000D;
+    private final Channel channel;
+    private final Ticker ticker;
+    private final double messagesPerNano;
+    private final double bytesPerNano;
+    private final double messageCapacity;
+    private final double byteCapacity;
+    private final ArrayDeque<Pending>[] queues;
+    private double messageTokens;
+    private double byteTokens;
+    private long lastRefill;
+    private ScheduledFuture<?> wakeup;
+    private boolean closed;
+
+    OutboundScheduler(Channel channel, RateLimit limit) {
+        this(channel, limit, Ticker.SYSTEM);
+    }
+
+    @SuppressWarnings("unchecked")
+    OutboundScheduler(Channel channel, RateLimit limit, Ticker ticker) {
+        this.channel = channel;
+        this.ticker = ticker;
+        double burstSeconds = limit.burstNanos() / NANOS_PER_SECOND;
+        messagesPerNano = limit.messagesPerSecond() / NANOS_PER_SECOND;
+        bytesPerNano = limit.bytesPerSecond() / NANOS_PER_SECOND;
+        messageCapacity = Math.max(1, limit.messagesPerSecond() * burstSeconds);
+        byteCapacity = Math.max(1, limit.bytesPerSecond() * burstSeconds);
+        // Start full, so a new connection can send its first burst at once
+        messageTokens = messageCapacity;
+        byteTokens = byteCapacity;
+        lastRefill = ticker.nanoTime();
+        queues = new ArrayDeque[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        channel.closeFuture().addListener(f -> onClose());
+    }
+
+    ChannelFuture send(WebSocketFrame frame, Priority priority, ChannelPromise promise) {
+        Pending p = new Pending(frame, promise);
+        EventLoop loop = channel.eventLoop();
+        if (loop.inEventLoop()) {
+            enqueue(p, priority);
+        } else {
+            loop.execute(() -> enqueue(p, priority));
+        }
+        return promise;
+    }
+
+    int queued() {
+        int result = 0;
+        for (ArrayDeque<Pending> q : queues) {
+            result += q.size();
+        }
+        return result;
+    }
+
+    private void enqueue(Pending p, Priority priority) {
+        if (closed) {
+            p.fail();
+            return;
+        }
+        queues[priority.ordinal()].add(p);
+        // If a wakeup is pending, we are already waiting for tokens and
+        // the new message will be considered when it fires
+        if (wakeup == null) {
+            run();
+        }
+    }
+
+    @Override
+    public void run() {
+        wakeup = null;
+        if (closed) {
+            return;
+        }
+        refill();
+        boolean wrote = false;
+        for (Pending p; (p = next()) != null;) {
+            long delay = delayFor(p.size);
+            if (delay > 0) {
+                wakeup = channel.eventLoop().schedule(this, delay, TimeUnit.NANOSECONDS);
+                break;
+            }
+            remove(p);
+            if (messagesPerNano > 0) {
+                messageTokens--;
+            }
+            if (bytesPerNano > 0) {
+                byteTokens -= p.size;
+            }
+            channel.write(p.frame, p.promise);
+            wrote = true;
+        }
+        if (wrote) {
+            channel.flush();
+        }
+    }
+
+    private Pending next() {
+        for (ArrayDeque<Pending> q : queues) {
+            Pending result = q.peek();
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private void remove(Pending p) {
+        for (ArrayDeque<Pending> q : queues) {
+            if (q.peek() == p) {
+                q.poll();
+                return;
+            }
+        }
+    }
+
+    private void refill() {
+        long now = ticker.nanoTime();
+        long elapsed = now - lastRefill;
+        lastRefill = now;
+        if (messagesPerNano > 0) {
+            messageTokens = Math.min(messageCapacity, messageTokens + elapsed * messagesPerNano);
+        }
+        if (bytesPerNano > 0) {
+            byteTokens = Math.min(byteCapacity, byteTokens + elapsed * bytesPerNano);
+        }
+    }
+
+    private long delayFor(int size) {
+        double wait = 0;
+        if (messagesPerNano > 0 && messageTokens < 1) {
+            wait = (1 - messageTokens) / messagesPerNano;
+        }
+        if (bytesPerNano > 0) {
+            // A frame bigger than the bucket goes once the bucket is full,
+            // leaving it in debt for the messages which follow
+            double needed = Math.min(size, byteCapacity);
+            if (byteTokens < needed) {
+                wait = Math.max(wait, (needed - byteTokens) / bytesPerNano);
+            }
+        }
+        return wait <= 0 ? 0 : Math.max(1, (long) Math.ceil(wait));
+    }
+
+    private void onClose() {
+        closed = true;
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+        for (ArrayDeque<Pending> q : queues) {
+            for (Pending p; (p = q.poll()) != null;) {
+                p.fail();
+            }
+        }
+    }
+
+    private static final class Pending {
+
+        private final WebSocketFrame frame;
+        private final ChannelPromise promise;
+        private final int size;
+
+        Pending(WebSocketFrame frame, ChannelPromise promise) {
+            this.frame = frame;
+            this.promise = promise;
+            this.size = frame.content().readableBytes();
+        }
+
+        void fail() {
+            frame.release();
+            promise.tryFailure(new ClosedChannelException());
+        }
+    }
+}
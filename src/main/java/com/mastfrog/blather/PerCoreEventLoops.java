@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.DefaultSelectStrategyFactory;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SelectStrategy;
+import io.netty.channel.SelectStrategyFactory;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loops, connections assigned to them in turn, using the
+ * epoll transport with optional busy-waiting where available. A request
+ * keeps the loop it was given for the lifetime of its connection.
+ *
+ * @author Tim Boudreau
+ */
+final class PerCoreEventLoops implements ClientEventLoops {
+
+    private static final SelectStrategyFactory BUSY_WAIT
+            = () -> (selectSupplier, hasTasks) -> SelectStrategy.BUSY_WAIT;
+    private final EventLoopGroup group;
+    private final EventLoop[] loops;
+    private final boolean epoll;
+    private final AtomicInteger next = new AtomicInteger();
+
+    PerCoreEventLoops(int count, boolean busyPoll, ThreadFactory threads) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Need at least one event loop: " + count);
+        }
+        if (threads == null) {
+            threads = new DefaultThreadFactory("blather-core", true, Thread.MAX_PRIORITY);
+        }
+        EventLoopGroup g = Transports.epollGroup(count, threads,
+                busyPoll ? BUSY_WAIT : DefaultSelectStrategyFactory.INSTANCE);
+        epoll = g != null;
+        if (g == null) {
+            // NIO has no busy-wait strategy
+            g = new NioEventLoopGroup(count, threads);
+        }
+        group = g;
+        loops = new EventLoop[count];
+        int ix = 0;
+        for (EventExecutor e : group) {
+            loops[ix++] = (EventLoop) e;
+        }
+    }
+
+    @Override
+    public EventLoopGroup group() {
+        return group;
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    @Override
+    public EventLoop eventLoopFor(String host, int port, String path) {
+        // Round-robin rather than by address, so many connections to one
+        // host are spread across all the loops
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    @Override
+    public void configure(Bootstrap bootstrap) {
+        bootstrap.option(ChannelOption.TCP_NODELAY, true);
+    }
+
+    @Override
+    public String toString() {
+        return "PerCoreEventLoops(" + loops.length + (epoll ? " epoll)" : " nio)");
+    }
+}
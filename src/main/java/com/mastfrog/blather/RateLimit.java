@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import static com.mastfrog.util.preconditions.Checks.notNull;
+import java.time.Duration;
+
+/**
+ * Limits how fast messages are written to a connection, for servers which
+ * disconnect clients that send too much. Messages are limited by count, by
+ * bytes, or both, using token buckets which refill continuously and hold up
+ * to one burst's worth of tokens. Messages which must wait are queued on
+ * the connection's event loop by {@link Priority}.
+ *
+ * @author Tim Boudreau
+ */
+public final class RateLimit {
+
+    private final double messagesPerSecond;
+    private final double bytesPerSecond;
+    private final long burstNanos;
+
+    private RateLimit(Builder b) {
+        this.messagesPerSecond = b.messagesPerSecond;
+        this.bytesPerSecond = b.bytesPerSecond;
+        this.burstNanos = b.burst.toNanos();
+    }
+
+    /**
+     * Create a builder. A rate limit needs a message or byte rate, or both.
+     *
+     * @return A builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    double messagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    double bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    long burstNanos() {
+        return burstNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimit(" + (messagesPerSecond > 0 ? "messagesPerSecond=" + messagesPerSecond + ", " : "")
+                + (bytesPerSecond > 0 ? "bytesPerSecond=" + bytesPerSecond + ", " : "")
+                + "burst=" + Duration.ofNanos(burstNanos) + ")";
+    }
+
+    /**
+     * Builds a RateLimit.
+     */
+    public static final class Builder {
+
+        private double messagesPerSecond;
+        private double bytesPerSecond;
+        private Duration burst = Duration.ofSeconds(1);
+
+        private Builder() {
+        }
+
+        /**
+         * Limit the number of messages written per second.
+         *
+         * @param messages The number of messages
+         * @return this
+         */
+        public Builder messagesPerSecond(double messages) {
+            if (messages <= 0) {
+                throw new IllegalArgumentException("Message rate must be positive: " + messages);
+            }
+            this.messagesPerSecond = messages;
+            return this;
+        }
+
+        /**
+         * Limit the number of payload bytes written per second. A message
+         * larger than a burst's worth of bytes is still sent, once the bucket
+         * is full, and the following messages wait to make up for it.
+         *
+         * @param bytes The number of bytes
+         * @return this
+         */
+        public Builder bytesPerSecond(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Byte rate must be positive: " + bytes);
+            }
+            this.bytesPerSecond = bytes;
+            return this;
+        }
+
+        /**
+         * Set how much unused capacity can accumulate while a connection is
+         * quiet, as a duration at the configured rates. The default is one
+         * second.
+         *
+         * @param burst The burst duration
+         * @return this
+         */
+        public Builder burst(Duration burst) {
+            if (notNull("burst", burst).isNegative() || burst.isZero()) {
+                throw new IllegalArgumentException("Burst must be positive: " + burst);
+            }
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * Create the rate limit.
+         *
+         * @return A rate limit
+         */
+        public RateLimit build() {
+            if (messagesPerSecond <= 0 && bytesPerSecond <= 0) {
+                throw new IllegalStateException("Neither a message nor a byte rate was set");
+            }
+            return new RateLimit(this);
+        }
+    }
+}
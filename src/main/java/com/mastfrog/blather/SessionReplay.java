@@ -0,0 +1,255 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import static com.mastfrog.util.preconditions.Checks.notNull;
+import com.mastfrog.util.preconditions.Exceptions;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Replays the inbound frames of a session recorded with
+ * {@link WebsocketClientRequest#capture(java.nio.file.Path, int)} through a
+ * callback, with the same dispatch and message conversion a live connection
+ * uses, but without a server. Useful for reproducing problems and for
+ * benchmarking handlers offline. Replies and messages the callback sends
+ * are counted and discarded. Frames are delivered on the thread which calls
+ * <code>run()</code>.
+ *
+ * @author Tim Boudreau
+ */
+public final class SessionReplay {
+
+    private final WebSocketClientsImpl clients;
+    private final Path file;
+    private double speed = 1;
+    private Ticker ticker = Ticker.SYSTEM;
+
+    SessionReplay(WebSocketClientsImpl clients, Path file) throws IOException {
+        this.clients = clients;
+        this.file = file;
+        // Fail fast if it is not a capture
+        FrameCapture.read(file);
+    }
+
+    /**
+     * Replay at a multiple of the speed the session was recorded at - 1 for
+     * the original timing, 10 for ten times as fast. The default is 1.
+     *
+     * @param multiplier The speed multiplier
+     * @return this
+     */
+    public SessionReplay speed(double multiplier) {
+        if (multiplier <= 0 || Double.isNaN(multiplier) || Double.isInfinite(multiplier)) {
+            throw new IllegalArgumentException("Speed must be a positive number: " + multiplier);
+        }
+        this.speed = multiplier;
+        return this;
+    }
+
+    /**
+     * Replay frames as fast as the callback can process them, ignoring the
+     * recorded timing.
+     *
+     * @return this
+     */
+    public SessionReplay maxSpeed() {
+        this.speed = 0;
+        return this;
+    }
+
+    SessionReplay ticker(Ticker ticker) {
+        this.ticker = notNull("ticker", ticker);
+        return this;
+    }
+
+    /**
+     * Replay the session through a handler, converting messages to the
+     * passed type as {@link WebsocketClientRequest#onMessage(java.lang.Class, com.mastfrog.blather.WebsocketMessageHandler)}
+     * does.
+     *
+     * @param <T> The message type
+     * @param type The message type
+     * @param handler The handler
+     * @return The outcome of the replay
+     * @throws Throwable If the handler throws, or the capture cannot be read
+     */
+    public <T> Result run(Class<T> type, WebsocketMessageHandler<T> handler) throws Throwable {
+        notNull("type", type);
+        notNull("handler", handler);
+        FrameCallback<T> fc = new FrameCallback<T>() {
+            int ix = 0;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T onMessage(WebSocketFrame frame, T data, ChannelControl channel) throws Exception {
+                return (T) handler.onMessage(ix++, data, channel);
+            }
+        };
+        return run(clients.callbackFor(fc, type));
+    }
+
+    /**
+     * Replay the session through a callback.
+     *
+     * @param callback The callback
+     * @return The outcome of the replay
+     * @throws Throwable If the callback throws, or the capture cannot be read
+     */
+    @SuppressWarnings("unchecked")
+    public Result run(FrameCallback<WebSocketFrame> callback) throws Throwable {
+        notNull("callback", callback);
+        Collector ex = new Collector();
+        EmbeddedChannel channel = new EmbeddedChannel();
+        BiFunction<FrameCallback<?>, Class<?>, FrameCallback<WebSocketFrame>> convert
+                = (cb, type) -> clients.callbackFor(cb, (Class) type);
+        Function<Object, WebSocketFrame> fconvert = obj -> {
+            try {
+                return clients.toWebSocketFrame(obj, channel);
+            } catch (IOException e) {
+                return Exceptions.chuck(e);
+            }
+        };
+        // No handshaker - the handler treats the connection as upgraded
+        channel.pipeline().addLast(new WebSocketClientHandler(callback, null, convert, fconvert, ex));
+        int frames = 0;
+        int replies = 0;
+        long start = ticker.nanoTime();
+        try {
+            FrameCapture.Reader reader = FrameCapture.read(file);
+            long first = -1;
+            while (ex.thrown == null && channel.isOpen() && reader.next()) {
+                if (reader.outbound()) {
+                    continue;
+                }
+                if (first < 0) {
+                    first = reader.nanos();
+                }
+                if (speed > 0) {
+                    long due = start + (long) ((reader.nanos() - first) / speed);
+                    long wait = due - ticker.nanoTime();
+                    if (wait > 0) {
+                        ticker.sleep(wait);
+                    }
+                }
+                channel.writeInbound(reader.frame(channel.alloc()));
+                frames++;
+                channel.runPendingTasks();
+                for (Object msg; (msg = channel.readOutbound()) != null;) {
+                    replies++;
+                    ReferenceCountUtil.release(msg);
+                }
+            }
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+        Duration elapsed = Duration.ofNanos(ticker.nanoTime() - start);
+        ex.rethrow();
+        return new Result(frames, replies, elapsed);
+    }
+
+    private static final class Collector implements ExceptionCollector {
+
+        private Throwable thrown;
+
+        @Override
+        public void rethrow() throws Throwable {
+            if (thrown != null) {
+                throw thrown;
+            }
+        }
+
+        @Override
+        public void onException(Throwable t, ChannelHandlerContext ctx) {
+            if (thrown == null) {
+                thrown = t;
+            }
+        }
+    }
+
+    /**
+     * Outcome of a replay.
+     */
+    public static final class Result {
+
+        private final int frames;
+        private final int replies;
+        private final Duration elapsed;
+
+        Result(int frames, int replies, Duration elapsed) {
+            this.frames = frames;
+            this.replies = replies;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * Get the number of inbound frames delivered.
+         *
+         * @return The count
+         */
+        public int frames() {
+            return frames;
+        }
+
+        /**
+         * Get the number of frames the callback replied with or sent.
+         *
+         * @return The count
+         */
+        public int replies() {
+            return replies;
+        }
+
+        /**
+         * Get the time the replay took.
+         *
+         * @return The elapsed time
+         */
+        public Duration elapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Get the rate frames were delivered at.
+         *
+         * @return Frames per second
+         */
+        public double framesPerSecond() {
+            return frames / (elapsed.toNanos() / 1_000_000_000D);
+        }
+
+        @Override
+        public String toString() {
+            return "Replayed " + frames + " frames in " + elapsed.toMillis() + "ms with "
+                    + replies + " replies";
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.time.Duration;
+
+/**
+ * Outcome of shutting down a Blather instance with
+ * {@link Blather#shutdown(java.time.Duration)}.
+ *
+ * @author Tim Boudreau
+ */
+public final class ShutdownReport {
+
+    private final int total;
+    private final int cleanly;
+    private final Duration elapsed;
+
+    ShutdownReport(int total, int cleanly, Duration elapsed) {
+        this.total = total;
+        this.cleanly = cleanly;
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * Get the number of connections which were open when shutdown began.
+     *
+     * @return The count
+     */
+    public int total() {
+        return total;
+    }
+
+    /**
+     * Get the number of connections which the server acknowledged closing
+     * before the deadline.
+     *
+     * @return The count
+     */
+    public int closedCleanly() {
+        return cleanly;
+    }
+
+    /**
+     * Get the number of connections which had to be closed without waiting
+     * for the server to acknowledge closing them.
+     *
+     * @return The count
+     */
+    public int closedForcibly() {
+        return total - cleanly;
+    }
+
+    /**
+     * Get the time shutdown took, including stopping the event loops.
+     *
+     * @return The elapsed time
+     */
+    public Duration elapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "Shut down " + total + " connections in " + elapsed.toMillis() + "ms, "
+                + cleanly + " cleanly, " + (total - cleanly) + " forcibly";
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import static com.mastfrog.util.preconditions.Checks.notNull;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
+import java.time.Duration;
+
+/**
+ * Socket and buffer settings applied to new connections - connect timeout,
+ * TCP options, socket buffer sizes, how large a buffer to read into, when a
+ * connection stops being writable, and which allocator to use. Use one of
+ * the presets, or create one with <code>builder()</code>, and set it on a
+ * Blather or on individual requests. Settings left unset keep Netty's
+ * defaults.
+ *
+ * @author Tim Boudreau
+ */
+public final class TransportProfile {
+
+    /**
+     * Netty's defaults for everything.
+     */
+    public static final TransportProfile DEFAULT = builder().build();
+    /**
+     * Large socket buffers and read buffers, and Nagle's algorithm left on,
+     * for connections which move a lot of data and care less about the
+     * latency of individual messages.
+     */
+    public static final TransportProfile THROUGHPUT = builder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .tcpNoDelay(false)
+            .socketBuffers(1024 * 1024, 1024 * 1024)
+            .receiveBuffers(new AdaptiveRecvByteBufAllocator(512, 64 * 1024, 1024 * 1024))
+            .writeBufferWaterMark(256 * 1024, 1024 * 1024)
+            .allocator(PooledByteBufAllocator.DEFAULT)
+            .build();
+    /**
+     * Nagle's algorithm off and small write buffer limits, so messages go
+     * out as soon as they are written and back-pressure is felt early.
+     */
+    public static final TransportProfile LOW_LATENCY = builder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .tcpNoDelay(true)
+            .writeBufferWaterMark(8 * 1024, 32 * 1024)
+            .allocator(PooledByteBufAllocator.DEFAULT)
+            .build();
+    /**
+     * Small socket and read buffers, for processes holding many mostly idle
+     * connections.
+     */
+    public static final TransportProfile LOW_MEMORY = builder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .tcpNoDelay(true)
+            .socketBuffers(16 * 1024, 16 * 1024)
+            .receiveBuffers(new AdaptiveRecvByteBufAllocator(64, 512, 16 * 1024))
+            .writeBufferWaterMark(4 * 1024, 16 * 1024)
+            .build();
+    private final Integer connectTimeoutMillis;
+    private final Boolean tcpNoDelay;
+    private final Boolean keepAlive;
+    private final Integer receiveBufferSize;
+    private final Integer sendBufferSize;
+    private final RecvByteBufAllocator receiveBuffers;
+    private final WriteBufferWaterMark waterMark;
+    private final ByteBufAllocator allocator;
+
+    private TransportProfile(Builder b) {
+        this.connectTimeoutMillis = b.connectTimeoutMillis;
+        this.tcpNoDelay = b.tcpNoDelay;
+        this.keepAlive = b.keepAlive;
+        this.receiveBufferSize = b.receiveBufferSize;
+        this.sendBufferSize = b.sendBufferSize;
+        this.receiveBuffers = b.receiveBuffers;
+        this.waterMark = b.waterMark;
+        this.allocator = b.allocator;
+    }
+
+    /**
+     * Create a builder for a custom profile.
+     *
+     * @return A builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Create a builder initialized with this profile's settings.
+     *
+     * @return A builder
+     */
+    public Builder toBuilder() {
+        Builder result = new Builder();
+        result.connectTimeoutMillis = connectTimeoutMillis;
+        result.tcpNoDelay = tcpNoDelay;
+        result.keepAlive = keepAlive;
+        result.receiveBufferSize = receiveBufferSize;
+        result.sendBufferSize = sendBufferSize;
+        result.receiveBuffers = receiveBuffers;
+        result.waterMark = waterMark;
+        result.allocator = allocator;
+        return result;
+    }
+
+    /**
+     * Get the allocator connections using this profile will use, if one was
+     * set.
+     *
+     * @return An allocator or null
+     */
+    public ByteBufAllocator allocator() {
+        return allocator;
+    }
+
+    /**
+     * Apply this profile to a bootstrap.
+     *
+     * @param bootstrap The bootstrap
+     * @param tcp Whether the bootstrap creates TCP sockets, rather than unix
+     * domain sockets, for which TCP options are meaningless
+     */
+    void configure(Bootstrap bootstrap, boolean tcp) {
+        if (connectTimeoutMillis != null) {
+            bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis);
+        }
+        if (tcp) {
+            if (tcpNoDelay != null) {
+                bootstrap.option(ChannelOption.TCP_NODELAY, tcpNoDelay);
+            }
+            if (keepAlive != null) {
+                bootstrap.option(ChannelOption.SO_KEEPALIVE, keepAlive);
+            }
+        }
+        if (receiveBufferSize != null) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        if (sendBufferSize != null) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBuffers != null) {
+            bootstrap.option(ChannelOption.RCVBUF_ALLOCATOR, receiveBuffers);
+        }
+        if (waterMark != null) {
+            bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark);
+        }
+        if (allocator != null) {
+            bootstrap.option(ChannelOption.ALLOCATOR, allocator);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TransportProfile(");
+        append(sb, "connectTimeoutMillis", connectTimeoutMillis);
+        append(sb, "tcpNoDelay", tcpNoDelay);
+        append(sb, "keepAlive", keepAlive);
+        append(sb, "receiveBufferSize", receiveBufferSize);
+        append(sb, "sendBufferSize", sendBufferSize);
+        append(sb, "receiveBuffers", receiveBuffers);
+        append(sb, "waterMark", waterMark);
+        append(sb, "allocator", allocator);
+        return sb.append(')').toString();
+    }
+
+    private static void append(StringBuilder sb, String name, Object value) {
+        if (value != null) {
+            if (sb.charAt(sb.length() - 1) != '(') {
+                sb.append(", ");
+            }
+            sb.append(name).append('=').append(value);
+        }
+    }
+
+    /**
+     * Builds a TransportProfile.
+     */
+    public static final class Builder {
+
+        private Integer connectTimeoutMillis;
+        private Boolean tcpNoDelay;
+        private Boolean keepAlive;
+        private Integer receiveBufferSize;
+        private Integer sendBufferSize;
+        private RecvByteBufAllocator receiveBuffers;
+        private WriteBufferWaterMark waterMark;
+        private ByteBufAllocator allocator;
+
+        private Builder() {
+        }
+
+        /**
+         * Set how long to wait for a TCP connection to be established.
+         *
+         * @param timeout The timeout
+         * @return this
+         */
+        public Builder connectTimeout(Duration timeout) {
+            long millis = notNull("timeout", timeout).toMillis();
+            if (millis < 0 || millis > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Bad connect timeout " + timeout);
+            }
+            connectTimeoutMillis = (int) millis;
+            return this;
+        }
+
+        /**
+         * Set whether to disable Nagle's algorithm.
+         *
+         * @param noDelay If true, send small writes immediately
+         * @return this
+         */
+        public Builder tcpNoDelay(boolean noDelay) {
+            tcpNoDelay = noDelay;
+            return this;
+        }
+
+        /**
+         * Set whether to enable TCP keep-alive probes.
+         *
+         * @param keepAlive Whether to enable keep-alive
+         * @return this
+         */
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Set the kernel's socket receive and send buffer sizes.
+         *
+         * @param receive The receive buffer size in bytes
+         * @param send The send buffer size in bytes
+         * @return this
+         */
+        public Builder socketBuffers(int receive, int send) {
+            if (receive <= 0 || send <= 0) {
+                throw new IllegalArgumentException("Buffer sizes must be positive: "
+                        + receive + ", " + send);
+            }
+            receiveBufferSize = receive;
+            sendBufferSize = send;
+            return this;
+        }
+
+        /**
+         * Set how the size of the buffer each read goes into is chosen.
+         *
+         * @param receiveBuffers A receive buffer allocator
+         * @return this
+         */
+        public Builder receiveBuffers(RecvByteBufAllocator receiveBuffers) {
+            this.receiveBuffers = notNull("receiveBuffers", receiveBuffers);
+            return this;
+        }
+
+        /**
+         * Set the amount of pending outbound data at which a connection
+         * becomes unwritable, and the amount it must fall below to become
+         * writable again.
+         *
+         * @param low The low water mark in bytes
+         * @param high The high water mark in bytes
+         * @return this
+         */
+        public Builder writeBufferWaterMark(int low, int high) {
+            waterMark = new WriteBufferWaterMark(low, high);
+            return this;
+        }
+
+        /**
+         * Set the allocator for buffers read into and messages encoded
+         * into.
+         *
+         * @param allocator An allocator
+         * @return this
+         */
+        public Builder allocator(ByteBufAllocator allocator) {
+            this.allocator = notNull("allocator", allocator);
+            return this;
+        }
+
+        /**
+         * Create the profile.
+         *
+         * @return A profile
+         */
+        public TransportProfile build() {
+            return new TransportProfile(this);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SelectStrategyFactory;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Chooses the socket channel type which matches an event loop group, since
+ * an epoll or kqueue group cannot run NIO channels, nor vice versa, and
+ * provides the pieces of the epoll transport needed for unix domain sockets.
+ * The native transports are looked up reflectively so they remain optional
+ * dependencies.
+ *
+ * @author Tim Boudreau
+ */
+final class Transports {
+
+    private static final Map<Class<?>, Class<? extends Channel>> CHANNEL_TYPES = new ConcurrentHashMap<>();
+
+    private Transports() {
+        throw new AssertionError();
+    }
+
+    static Class<? extends Channel> socketChannel(EventLoopGroup group) {
+        return CHANNEL_TYPES.computeIfAbsent(group.getClass(), Transports::socketChannelFor);
+    }
+
+    private static Class<? extends Channel> socketChannelFor(Class<?> groupType) {
+        String name = groupType.getName();
+        if (name.startsWith("io.netty.channel.epoll.")) {
+            return load("io.netty.channel.epoll.EpollSocketChannel", groupType);
+        } else if (name.startsWith("io.netty.channel.kqueue.")) {
+            return load("io.netty.channel.kqueue.KQueueSocketChannel", groupType);
+        }
+        return NioSocketChannel.class;
+    }
+
+    /**
+     * Create an epoll event loop group, if the native transport is on the
+     * classpath and usable on this platform.
+     *
+     * @return A group or null
+     */
+    static EventLoopGroup epollGroup(int count, ThreadFactory threads, SelectStrategyFactory strategy) {
+        if (!epollAvailable()) {
+            return null;
+        }
+        try {
+            return (EventLoopGroup) Class.forName("io.netty.channel.epoll.EpollEventLoopGroup")
+                    .getConstructor(int.class, ThreadFactory.class, SelectStrategyFactory.class)
+                    .newInstance(count, threads, strategy);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    static boolean epollAvailable() {
+        try {
+            Class<?> epoll = Class.forName("io.netty.channel.epoll.Epoll");
+            return Boolean.TRUE.equals(epoll.getMethod("isAvailable").invoke(null));
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    static boolean isEpoll(EventLoopGroup group) {
+        return group.getClass().getName().startsWith("io.netty.channel.epoll.");
+    }
+
+    static Class<? extends Channel> domainSocketChannel(EventLoopGroup group) {
+        if (!isEpoll(group)) {
+            throw new IllegalStateException("Unix domain sockets need an epoll event loop, not " + group);
+        }
+        return load("io.netty.channel.epoll.EpollDomainSocketChannel", group.getClass());
+    }
+
+    static SocketAddress domainSocketAddress(String path) {
+        try {
+            return (SocketAddress) Class.forName("io.netty.channel.unix.DomainSocketAddress")
+                    .getConstructor(String.class).newInstance(path);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            throw new UnsupportedOperationException("Unix domain sockets unavailable", ex);
+        }
+    }
+
+    static Class<? extends Channel> load(String channelType, Class<?> groupType) {
+        try {
+            return Class.forName(channelType, true, groupType.getClassLoader()).asSubclass(Channel.class);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("Cannot find " + channelType + " to use with " + groupType.getName(), ex);
+        }
+    }
+}
@@ -23,6 +23,7 @@
  */
 package com.mastfrog.blather;
 
+import static com.mastfrog.util.preconditions.Checks.notNull;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -38,6 +39,7 @@ import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.util.CharsetUtil;
+import java.util.concurrent.Executor;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.logging.Level;
@@ -47,12 +49,22 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
 
     private FrameCallback<WebSocketFrame> cb;
 
-    private final WebSocketClientHandshaker handshaker;
+    // Dropped once the handshake completes; an idle connection has no
+    // further use for it
+    private WebSocketClientHandshaker handshaker;
     private ChannelPromise handshakeFuture;
     private final BiFunction<FrameCallback<?>, Class<?>, FrameCallback<WebSocketFrame>> convert;
     private final Function<Object, WebSocketFrame> fconvert;
     private final ExceptionCollector ex;
+    private final ChannelFutureListener onSendComplete = this::onSendComplete;
+    private ChannelControlImpl ctrl;
+    private ChannelHandlerContext context;
+    private boolean handshakeStarted;
     Logger logger;
+    // If set, messages sent from the event loop are encoded here
+    Executor encoder;
+    // If set, outbound messages are queued to stay under it
+    RateLimit rateLimit;
 
     public WebSocketClientHandler(FrameCallback<WebSocketFrame> cb, WebSocketClientHandshaker handshaker,
             BiFunction<FrameCallback<?>, Class<?>, FrameCallback<WebSocketFrame>> convert,
@@ -65,17 +77,95 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
     }
 
     ChannelControl ctrl(Channel channel) {
-        return new ChannelControlImpl(channel);
+        // One ChannelControl per connection - the inbound path is hot, and
+        // there is no reason to create a new one for every frame
+        ChannelControlImpl result = ctrl;
+        if (result == null || result.channel != channel) {
+            ctrl = result = new ChannelControlImpl(channel);
+        }
+        return result;
+    }
+
+    private void onSendComplete(ChannelFuture f) {
+        if (!f.isSuccess()) {
+            exceptionCaught(context, f.cause());
+        }
     }
 
     class ChannelControlImpl implements ChannelControl {
 
         final Channel channel;
+        private OrderedEncoder encoded;
+        private OutboundScheduler scheduler;
 
         public ChannelControlImpl(Channel channel) {
             this.channel = channel;
         }
 
+        private OrderedEncoder encoded() {
+            if (encoder == null) {
+                return null;
+            }
+            // Only created once something is sent, so idle connections
+            // do not pay for it
+            synchronized (this) {
+                if (encoded == null) {
+                    encoded = new OrderedEncoder(encoder, channel, fconvert, scheduler());
+                }
+                return encoded;
+            }
+        }
+
+        private synchronized OutboundScheduler scheduler() {
+            if (rateLimit == null) {
+                return null;
+            }
+            if (scheduler == null) {
+                scheduler = new OutboundScheduler(channel, rateLimit);
+            }
+            return scheduler;
+        }
+
+        private ChannelFuture write(WebSocketFrame frame, Priority priority) {
+            OutboundScheduler sched = scheduler();
+            if (sched == null) {
+                return channel.writeAndFlush(frame);
+            }
+            return sched.send(frame, priority, channel.newPromise());
+        }
+
+        /**
+         * Write a frame returned by a callback, keeping its place behind any
+         * messages still waiting to be encoded.
+         */
+        void reply(WebSocketFrame frame) {
+            reply(frame, true);
+        }
+
+        /**
+         * Write one of several frames produced while handling a read,
+         * keeping its place behind anything waiting to be encoded or held
+         * back by the rate limit.
+         *
+         * @param frame The frame
+         * @param flush Whether to flush if it is written immediately
+         * @return true if the frame was written and not flushed, so the
+         * caller needs to flush the channel when done
+         */
+        boolean reply(WebSocketFrame frame, boolean flush) {
+            OrderedEncoder enc = encoded();
+            if (enc != null) {
+                enc.send(frame, Priority.NORMAL);
+                return false;
+            }
+            if (flush || scheduler() != null) {
+                write(frame, Priority.NORMAL);
+                return false;
+            }
+            channel.write(frame);
+            return true;
+        }
+
         @Override
         public <T> ChannelControl nextCallback(FrameCallback<T> cb, Class<T> type) {
             WebSocketClientHandler.this.cb = convert.apply(cb, type);
@@ -84,12 +174,24 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
 
         @Override
         public <T> ChannelFuture send(T message) {
-            ChannelFuture result = channel().writeAndFlush(fconvert.apply(cb));
-            result.addListener((ChannelFuture f) -> {
-                if (!f.isSuccess()) {
-                    exceptionCaught(null, f.cause());
-                }
-            });
+            return send(message, Priority.NORMAL);
+        }
+
+        @Override
+        public <T> ChannelFuture send(T message, Priority priority) {
+            notNull("priority", priority);
+            OrderedEncoder enc = encoded();
+            ChannelFuture result;
+            if (enc == null) {
+                result = write(fconvert.apply(message), priority);
+            } else if (channel.eventLoop().inEventLoop()) {
+                result = enc.send(message, priority);
+            } else {
+                // Encode on the calling thread; the encoder only keeps the
+                // frame in order with anything it is still working on
+                result = enc.send(fconvert.apply(message), priority);
+            }
+            result.addListener(onSendComplete);
             return result;
         }
 
@@ -134,6 +236,8 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
 
     @Override
     public void handlerAdded(ChannelHandlerContext ctx) {
+        context = ctx;
+        ctrl = new ChannelControlImpl(ctx.channel());
         handshakeFuture = ctx.newPromise();
         if (onHandshake != null) {
             handshakeFuture.addListener(onHandshake);
@@ -143,8 +247,26 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
                 exceptionCaught(ctx, f.cause());
                 return;
             }
-            cb.onConnect(new ChannelControlImpl(f.channel()));
+            cb.onConnect(ctrl(f.channel()));
         });
+        // If we are added to a channel which is already connected, we will
+        // never see channelActive()
+        if (ctx.channel().isActive()) {
+            startHandshake(ctx);
+        }
+    }
+
+    private void startHandshake(ChannelHandlerContext ctx) {
+        if (!handshakeStarted) {
+            handshakeStarted = true;
+            if (handshaker == null) {
+                // Replaying a captured session - there is nothing to
+                // negotiate, and frames can be delivered right away
+                handshakeFuture.setSuccess();
+            } else {
+                handshaker.handshake(ctx.channel());
+            }
+        }
     }
 
     @Override
@@ -152,7 +274,7 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
         if (logger != null) {
             logger.log(Level.INFO, "Client is connected.");
         }
-        handshaker.handshake(ctx.channel());
+        startHandshake(ctx);
     }
 
     @Override
@@ -166,11 +288,12 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
     @Override
     public void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
         Channel ch = ctx.channel();
-        if (!handshaker.isHandshakeComplete()) {
+        if (handshaker != null) {
             if (logger != null) {
                 logger.log(Level.INFO, "Finishing websocket handshake");
             }
             handshaker.finishHandshake(ch, (FullHttpResponse) msg);
+            handshaker = null;
             if (logger != null) {
                 logger.log(Level.INFO, "Websocket handshake complete.");
             }
@@ -185,28 +308,44 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
                     + ", content=" + response.content().toString(CharsetUtil.UTF_8) + ')');
         }
 
-        WebSocketFrame frame = (WebSocketFrame) msg;
-        if (frame instanceof TextWebSocketFrame) {
-            TextWebSocketFrame textFrame = (TextWebSocketFrame) frame;
-            if (logger != null) {
-                logger.log(Level.INFO, "Received frame {0}", textFrame);
-            }
+        onFrame(ctx, (WebSocketFrame) msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (handshaker == null) {
             try {
-                WebSocketFrame response = cb.onMessage(frame, frame, ctrl(ctx.channel()));
-                if (response != null) {
-                    ctx.channel().writeAndFlush(response);
-                }
+                cb.onReadComplete(ctrl(ctx.channel()));
             } catch (Exception e) {
                 exceptionCaught(ctx, e);
             }
-        } else if (frame instanceof BinaryWebSocketFrame) {
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Dispatch a websocket frame received after the handshake has completed.
+     * Nothing here allocates unless logging is enabled or the callback
+     * replies.
+     *
+     * @param ctx The context
+     * @param frame The frame
+     */
+    void onFrame(ChannelHandlerContext ctx, WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
             if (logger != null) {
                 logger.log(Level.INFO, "Received frame {0}", frame);
             }
             try {
-                WebSocketFrame response = cb.onMessage(frame, frame, ctrl(ctx.channel()));
+                ChannelControlImpl c = (ChannelControlImpl) ctrl(ctx.channel());
+                WebSocketFrame response = cb.onMessage(frame, frame, c);
                 if (response != null) {
-                    ctx.channel().writeAndFlush(response);
+                    if (response == frame) {
+                        // An echo - the inbound frame is released once we
+                        // return, and the write will release it again
+                        response.retain();
+                    }
+                    c.reply(response);
                 }
             } catch (Exception e) {
                 exceptionCaught(ctx, e);
@@ -219,7 +358,7 @@ final class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
             if (logger != null) {
                 logger.log(Level.INFO, "WebSocket Client received CloseWebsocketFrame from server, closing connection.");
             }
-            ch.close();
+            ctx.channel().close();
         }
     }
 
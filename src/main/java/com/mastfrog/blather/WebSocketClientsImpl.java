@@ -23,9 +23,17 @@
  */
 package com.mastfrog.blather;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonEOFException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.mastfrog.acteur.headers.HeaderValueType;
+import com.mastfrog.blather.WebSocketClientHandler.ChannelControlImpl;
 import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
 import com.mastfrog.url.Path;
 import com.mastfrog.url.Protocol;
@@ -38,19 +46,19 @@ import com.mastfrog.util.thread.ResettableCountDownLatch;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.DefaultSelectStrategyFactory;
 import static io.netty.channel.ChannelFutureListener.CLOSE;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpHeaders;
@@ -58,29 +66,45 @@ import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.Utf8FrameValidator;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
 import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketClientCompressionHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.inject.Inject;
@@ -101,18 +125,242 @@ import javax.net.ssl.SSLException;
  */
 final class WebSocketClientsImpl extends Blather {
 
-    final EventLoopGroup group = new NioEventLoopGroup();
+    private static final ChannelInitializer<Channel> NO_OP_INITIALIZER = new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel ch) {
+            // do nothing
+        }
+    };
+    final EventLoopGroup group;
+    private final ShutdownHookRegistry shutdownHooks;
+    private final ClientEventLoops loops;
+    private volatile EventLoopGroup domainSocketGroup;
+    private final boolean ownGroup;
     private final ObjectMapper mapper;
+    private final HostResolver resolver = new HostResolver();
+    private final HandshakeGate gate;
+    private volatile boolean shutDown;
+    final ConnectionRegistry connections = new ConnectionRegistry(null);
+    static final int CLOSE_TIMEOUT_SECONDS = 10;
 
-    @Inject
     WebSocketClientsImpl(ShutdownHookRegistry registry, ObjectMapper mapper) {
-        registry.addLast(group);
+        this(registry, mapper, new OwnEventLoops());
+    }
+
+    @Inject
+    WebSocketClientsImpl(ShutdownHookRegistry registry, ObjectMapper mapper, ClientEventLoops loops) {
+        this.shutdownHooks = registry;
+        this.loops = loops;
+        this.group = loops.group();
+        this.ownGroup = !loops.isShared();
+        if (ownGroup) {
+            registry.addLast(group);
+        }
         this.mapper = mapper;
+        this.gate = new HandshakeGate(group);
+    }
+
+    private void checkNotShutDown() {
+        if (shutDown) {
+            throw new IllegalStateException("Blather has been shut down");
+        }
     }
 
     @Override
     public WebsocketHostClient client(String host, int port, boolean ssl) {
-        return new ClientImpl(host, port, ssl);
+        checkNotShutDown();
+        return new ClientImpl(host, port, ssl, null);
+    }
+
+    @Override
+    public WebsocketHostClient unixClient(java.nio.file.Path socket) {
+        checkNotShutDown();
+        if (!Transports.epollAvailable()) {
+            throw new UnsupportedOperationException("Unix domain sockets require "
+                    + "Linux and netty-transport-native-epoll");
+        }
+        return new ClientImpl("localhost", -1, false, notNull("socket", socket).toString());
+    }
+
+    EventLoop domainSocketLoop() {
+        if (Transports.isEpoll(group)) {
+            return group.next();
+        }
+        // Our loops are NIO, which cannot do unix sockets, so use a
+        // separate epoll group, created only if needed
+        EventLoopGroup result = domainSocketGroup;
+        if (result == null) {
+            synchronized (this) {
+                if ((result = domainSocketGroup) == null) {
+                    result = Transports.epollGroup(1, new DefaultThreadFactory("blather-unix", true),
+                            DefaultSelectStrategyFactory.INSTANCE);
+                    if (result == null) {
+                        throw new UnsupportedOperationException("Could not create epoll event loop");
+                    }
+                    shutdownHooks.addLast(result);
+                    domainSocketGroup = result;
+                }
+            }
+        }
+        return result.next();
+    }
+
+    @Override
+    public Future<BroadcastResult> broadcast(Object message, Iterable<? extends WebsocketClientRequest> targets) {
+        List<ChannelControl> upgraded = new ArrayList<>();
+        for (WebsocketClientRequest req : notNull("targets", targets)) {
+            // Requests which are not connected yet, or are still in the
+            // handshake, are skipped
+            ChannelControl ctrl = req instanceof ClientImpl.ReqImpl ? ((ClientImpl.ReqImpl) req).control() : null;
+            if (ctrl != null) {
+                upgraded.add(ctrl);
+            }
+        }
+        return broadcastTo(message, upgraded);
+    }
+
+    Future<BroadcastResult> broadcastTo(Object message, List<ChannelControl> upgraded) {
+        // Encode once, using the allocator of one of the channels, and let
+        // every target write a retained duplicate of the result
+        Map<EventLoop, List<ChannelControl>> byLoop = Broadcast.byEventLoop(upgraded, ChannelControl::channel);
+        Channel first = byLoop.isEmpty() ? null : byLoop.values().iterator().next().get(0).channel();
+        WebSocketFrame frame;
+        try {
+            frame = toWebSocketFrame(notNull("message", message), first);
+        } catch (IOException ex) {
+            return ImmediateEventExecutor.INSTANCE.newFailedFuture(ex);
+        }
+        return Broadcast.send(frame, byLoop);
+    }
+
+    @Override
+    public WebsocketHostClient client(LoadBalancing balancing, boolean ssl, InetSocketAddress... endpoints) {
+        notNull("balancing", balancing);
+        checkNotShutDown();
+        List<ClientImpl> clients = new ArrayList<>(notNull("endpoints", endpoints).length);
+        for (InetSocketAddress addr : endpoints) {
+            clients.add(new ClientImpl(notNull("endpoint", addr).getHostString(), addr.getPort(), ssl, null));
+        }
+        return new BalancedClient(this, balancing, clients);
+    }
+
+    @Override
+    public Blather resolverCacheTtl(Duration ttl) {
+        resolver.ttl(notNull("ttl", ttl).toMillis());
+        return this;
+    }
+
+    @Override
+    public Blather limitConcurrentHandshakes(int maxConcurrent, int maxPerHost, Duration timeout) {
+        gate.timeout(notNull("timeout", timeout).toMillis());
+        gate.limit(maxConcurrent, maxPerHost);
+        return this;
+    }
+
+    @Override
+    public HandshakeAdmission handshakeAdmission() {
+        return gate;
+    }
+
+    @Override
+    public int openConnections() {
+        return connections.size();
+    }
+
+    private volatile boolean lowFootprint;
+    private volatile TransportProfile transportProfile = TransportProfile.DEFAULT;
+    private volatile CodecOptions codecOptions = CodecOptions.DEFAULT;
+    private volatile Executor encoder;
+
+    @Override
+    public SessionReplay replay(java.nio.file.Path capture) throws IOException {
+        return new SessionReplay(this, notNull("capture", capture));
+    }
+
+    @Override
+    public Blather encodeOn(Executor encoder) {
+        this.encoder = encoder;
+        return this;
+    }
+
+    @Override
+    public Blather codecOptions(CodecOptions options) {
+        this.codecOptions = notNull("options", options);
+        return this;
+    }
+
+    @Override
+    public Blather transportProfile(TransportProfile profile) {
+        this.transportProfile = notNull("profile", profile);
+        return this;
+    }
+
+    @Override
+    public Blather lowFootprint(boolean lowFootprint) {
+        this.lowFootprint = lowFootprint;
+        return this;
+    }
+
+    @Override
+    public ShutdownReport shutdown(Duration timeout) throws InterruptedException {
+        long start = System.nanoTime();
+        long nanos = notNull("timeout", timeout).toNanos();
+        // Set before sweeping the registry; requests started after this
+        // check it once registered, so none is missed
+        shutDown = true;
+        ConnectionRegistry.CloseAll closing
+                = connections.closeAll(true, group.next(), nanos, TimeUnit.NANOSECONDS);
+        // Stragglers are force-closed at the deadline; allow a moment for
+        // that to be processed before giving up on them
+        closing.future().await(nanos + TimeUnit.SECONDS.toNanos(1), TimeUnit.NANOSECONDS);
+        if (ownGroup) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+        }
+        EventLoopGroup domain = domainSocketGroup;
+        if (domain != null) {
+            domain.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+        }
+        return new ShutdownReport(closing.total(), closing.cleanly(),
+                Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private volatile SslContext sslContext;
+
+    SslContext sslContext() throws SSLException {
+        // Building an SslContext is expensive, and every client uses the
+        // same one
+        SslContext result = sslContext;
+        if (result == null) {
+            synchronized (this) {
+                result = sslContext;
+                if (result == null) {
+                    sslContext = result = SslContextBuilder.forClient()
+                            .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+                }
+            }
+        }
+        return result;
+    }
+
+    static Future<Channel> connected(EventLoop loop, ChannelFuture connect) {
+        Promise<Channel> result = loop.newPromise();
+        connect.addListener((ChannelFutureListener) f -> {
+            if (f.isSuccess()) {
+                result.trySuccess(f.channel());
+            } else {
+                result.tryFailure(f.cause());
+            }
+        });
+        return result;
+    }
+
+    static <T> List<T> append(List<T> list, T item) {
+        // Lists which are usually empty start out as the shared empty list
+        if (list.isEmpty()) {
+            list = new ArrayList<>(2);
+        }
+        list.add(item);
+        return list;
     }
 
     int throttleInitialRequestMillis;
@@ -126,42 +374,121 @@ final class WebSocketClientsImpl extends Blather {
         private final String host;
         private final int port;
         private final boolean ssl;
-        private final Set<ReqImpl> openRequests
-                = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+        private final String socket;
+        private final ConnectionRegistry registry = new ConnectionRegistry(connections);
 
-        ClientImpl(String host, int port, boolean ssl) {
+        ClientImpl(String host, int port, boolean ssl, String socket) {
             this.host = host;
             this.port = port;
             this.ssl = ssl;
+            this.socket = socket;
         }
 
-        private ReqImpl noteRequest(ReqImpl req) {
-            openRequests.add(req);
-            return req;
+        /**
+         * Politely close all open connections, allowing the server
+         * CLOSE_TIMEOUT_SECONDS to acknowledge before closing the rest.
+         */
+        @Override
+        public void close() {
+            registry.closeAll(true, group.next(), CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        public void closeImmediately() {
+            registry.closeAll(false, group.next(), 0, TimeUnit.SECONDS);
         }
 
         @Override
-        public void close() throws Exception {
-            for (ReqImpl req : openRequests) {
-                req.close();
-            }
+        public int openConnections() {
+            return registry.size();
         }
 
-        public void closeImmediately() throws Exception {
-            for (ReqImpl req : openRequests) {
-                req.closed.set(true);
-                req.channel.close();
-            }
+        @Override
+        public MultiplexedConnection multiplex(String path, int initialCredit) {
+            return Multiplexer.start(WebSocketClientsImpl.this, request(path), initialCredit);
+        }
+
+        @Override
+        public Future<BroadcastResult> broadcast(Object message) {
+            return broadcastTo(message, upgraded(new ArrayList<>()));
+        }
+
+        List<ChannelControl> upgraded(List<ChannelControl> into) {
+            return registry.upgraded(into);
         }
 
         @Override
         public WebsocketClientRequest request(String path) {
-            return noteRequest(new ReqImpl(notNull("path", path), null));
+            return new ReqImpl(notNull("path", path), null);
         }
 
         @Override
         public WebsocketClientRequest request(String path, Object sendWhenConnected) {
-            return noteRequest(new ReqImpl(notNull("path", path), sendWhenConnected));
+            return new ReqImpl(notNull("path", path), sendWhenConnected);
+        }
+
+        URL buildUrl(String path, List<String[]> queryPairs) {
+            Protocol protocol = ssl ? Protocols.WSS : Protocols.WS;
+            int pt = port <= 0 ? protocol.getDefaultPort().intValue() : port;
+            URLBuilder bldr = URL.builder(protocol).setHost(host).setPort(pt).setPath(Path.parse(path));
+            for (String[] queryPair : queryPairs) {
+                bldr.addQueryPair(queryPair[0], queryPair[1]);
+            }
+            URL result = bldr.create();
+            if (!result.isValid()) {
+                result.getProblems().throwIfFatalPresent();
+            }
+            return result;
+        }
+
+        final class TemplateImpl implements WebsocketRequestTemplate {
+
+            final String path;
+            final List<String[]> queryPairs;
+            final URL url;
+            final URI uri;
+            final HttpHeaders headers;
+            final boolean log;
+            final Logger logger;
+            final WebsocketErrorHandler onError;
+            final TransportProfile profile;
+            final CodecOptions codec;
+
+            TemplateImpl(ReqImpl req) {
+                path = req.path;
+                queryPairs = req.queryPairs();
+                url = buildUrl(path, queryPairs);
+                try {
+                    uri = url.toURI();
+                } catch (URISyntaxException ex) {
+                    throw new IllegalArgumentException("Bad URI " + url, ex);
+                }
+                headers = req.handshakeHeaders();
+                log = req.log;
+                logger = log ? Logger.getLogger(url.toString()) : null;
+                onError = req.onError;
+                profile = req.profile;
+                codec = req.codec;
+            }
+
+            @Override
+            public WebsocketClientRequest request() {
+                return new ReqImpl(path, this, null);
+            }
+
+            @Override
+            public WebsocketClientRequest request(Object sendWhenConnected) {
+                return new ReqImpl(path, this, notNull("sendWhenConnected", sendWhenConnected));
+            }
+
+            @Override
+            public URI uri() {
+                return uri;
+            }
+
+            @Override
+            public String toString() {
+                return "Template(" + url + ")";
+            }
         }
 
         @Override
@@ -179,34 +506,72 @@ final class WebSocketClientsImpl extends Blather {
             return ssl ? Protocols.WSS : Protocols.WS;
         }
 
-        final class ReqImpl implements WebsocketClientRequest {
+        final class ReqImpl implements WebsocketClientRequest, ConnectionRegistry.Connection {
 
-            private final ResettableCountDownLatch latch = new ResettableCountDownLatch(1);
+            // Most requests are never awaited, so rarely used state is only
+            // allocated on demand
+            private volatile ResettableCountDownLatch latch;
+            private volatile boolean done;
             final String path;
-            private final List<OnConnect> onConnects = new ArrayList<>();
-            private Channel channel;
+            private List<OnConnect> onConnects = Collections.emptyList();
+            private volatile Channel channel;
+            // Set while the connection is upgraded
+            private volatile ChannelControl control;
             private final ExceptionCollectorImpl ex = new ExceptionCollectorImpl();
             FrameCallback<WebSocketFrame> callback;
             private final AtomicBoolean started = new AtomicBoolean();
             private final AtomicBoolean closed = new AtomicBoolean();
-            private final List<String[]> queryPairs = new ArrayList<>();
-            private final List<HeaderEntry<?>> headers = new ArrayList<>();
+            private List<String[]> queryPairs = Collections.emptyList();
+            private List<HeaderEntry<?>> headers = Collections.emptyList();
+            private final TemplateImpl template;
+            private URL url;
+            private URI uri;
             WebsocketErrorHandler onError;
             private boolean log;
-            private final Logger logger;
+            private Logger logger;
             private int throttleMillis = throttleInitialRequestMillis;
+            ConnectionObserver observer = ConnectionObserver.NONE;
+            // Set once the observer has been told the connection failed or
+            // closed, which can be reached by more than one path
+            private final AtomicBoolean finished = new AtomicBoolean();
+            private volatile HandshakeGate.Ticket ticket;
+            private EventLoop eventLoop;
+            private TransportProfile profile;
+            private CodecOptions codec;
+            private RateLimit rateLimit;
+            private volatile MessageJournal journal;
+            private FrameCapture capture;
+            // Position of the next journal record to write - event loop only
+            private long journalSent;
 
             ReqImpl(String path, Object sendWhenConnected) {
+                this(path, null, sendWhenConnected);
+            }
+
+            ReqImpl(String path, TemplateImpl template, Object sendWhenConnected) {
+                checkNotShutDown();
                 this.path = path;
+                this.template = template;
+                if (template != null) {
+                    url = template.url;
+                    uri = template.uri;
+                    log = template.log;
+                    logger = template.logger;
+                    onError = template.onError;
+                    profile = template.profile;
+                    codec = template.codec;
+                }
                 if (sendWhenConnected != null) {
-                    onConnects.add((OnConnect) (URL ignored, ChannelControl ctrl) -> {
+                    onConnects = append(onConnects, (OnConnect) (URL ignored, ChannelControl ctrl) -> {
                         log("Send initial message {0} as web socket frame", sendWhenConnected);
                         throttle();
-                        WebSocketFrame frame = toWebSocketFrame(sendWhenConnected, ctrl.channel());
-                        ctrl.channel().writeAndFlush(frame);
+                        ctrl.send(sendWhenConnected);
                     });
                 }
-                logger = Logger.getLogger(url(path).toString());
+                if (template == null) {
+                    // Fail fast on an invalid path
+                    url();
+                }
             }
 
             void throttle() {
@@ -227,14 +592,22 @@ final class WebSocketClientsImpl extends Blather {
 
             void log(String s, Object... params) {
                 if (log) {
-                    logger.log(Level.WARNING, s, params);
+                    logger().log(Level.WARNING, s, params);
                 }
             }
 
             void log(String msg, Throwable thrown) {
                 if (log) {
-                    logger.log(Level.SEVERE, msg, thrown);
+                    logger().log(Level.SEVERE, msg, thrown);
+                }
+            }
+
+            private Logger logger() {
+                // Only needed if logging is turned on
+                if (logger == null) {
+                    logger = Logger.getLogger(url().toString());
                 }
+                return logger;
             }
 
             public WebsocketClientRequest log() {
@@ -242,20 +615,50 @@ final class WebSocketClientsImpl extends Blather {
                 return this;
             }
 
-            private URL url(String path) {
-                Protocol protocol = ssl ? Protocols.WSS : Protocols.WS;
-                int pt = port <= 0 ? protocol.getDefaultPort().intValue() : port;
-                URLBuilder bldr = URL.builder(protocol).setHost(host).setPort(pt).setPath(Path.parse(path));
-                for (String[] queryPair : queryPairs) {
-                    bldr.addQueryPair(queryPair[0], queryPair[1]);
+            private URL url() {
+                URL result = url;
+                if (result == null) {
+                    url = result = buildUrl(path, queryPairs());
+                }
+                return result;
+            }
+
+            URI uri() throws URISyntaxException {
+                URI result = uri;
+                if (result == null) {
+                    uri = result = url().toURI();
                 }
-                URL result = bldr.create();
-                if (!result.isValid()) {
-                    result.getProblems().throwIfFatalPresent();
+                return result;
+            }
+
+            List<String[]> queryPairs() {
+                if (template == null) {
+                    return queryPairs;
+                }
+                List<String[]> result = new ArrayList<>(template.queryPairs);
+                result.addAll(queryPairs);
+                return result;
+            }
+
+            HttpHeaders handshakeHeaders() {
+                if (template != null && headers.isEmpty()) {
+                    return template.headers;
+                }
+                DefaultHttpHeaders result = new DefaultHttpHeaders();
+                if (template != null) {
+                    result.add(template.headers);
+                }
+                for (HeaderEntry<?> e : headers) {
+                    e.decorate(result);
                 }
                 return result;
             }
 
+            @Override
+            public WebsocketRequestTemplate template() {
+                return new TemplateImpl(this);
+            }
+
             ExceptionCollector collector() {
                 return ex;
             }
@@ -265,7 +668,7 @@ final class WebSocketClientsImpl extends Blather {
                 if (started.get()) {
                     throw new IllegalStateException("Request already initiated, cannot add headers now");
                 }
-                headers.add(new HeaderEntry<T>(header, value));
+                headers = append(headers, new HeaderEntry<T>(header, value));
                 return this;
             }
 
@@ -274,47 +677,287 @@ final class WebSocketClientsImpl extends Blather {
                 if (started.get()) {
                     throw new IllegalStateException("Request already initiated, cannot add headers now");
                 }
-                queryPairs.add(new String[]{notNull("name", name), notNull("value", value)});
+                queryPairs = append(queryPairs, new String[]{notNull("name", name), notNull("value", value)});
+                url = null;
+                uri = null;
                 return this;
             }
 
             public void close() {
-                if (closed.compareAndSet(false, true) && channel != null && channel.isOpen()) {
-                    throttle();
-                    channel.writeAndFlush(new CloseWebSocketFrame()).addListener(CLOSE);
+                if (markClosed()) {
+                    Channel ch = channel;
+                    if (ch != null && ch.isOpen()) {
+                        throttle();
+                        ch.writeAndFlush(new CloseWebSocketFrame()).addListener(CLOSE);
+                    }
+                }
+            }
+
+            private void connectFailed(Throwable cause) {
+                registry.remove(this);
+                if (finished.compareAndSet(false, true)) {
+                    observer.onConnectFailed(cause);
+                }
+            }
+
+            private void connectionClosed() {
+                registry.remove(this);
+                if (finished.compareAndSet(false, true)) {
+                    observer.onClosed();
                 }
             }
 
             @Override
-            @SuppressWarnings("unchecked")
+            public boolean markClosed() {
+                if (!closed.compareAndSet(false, true)) {
+                    return false;
+                }
+                if (channel == null) {
+                    HandshakeGate.Ticket t = ticket;
+                    if (t != null && t.cancel()) {
+                        log("Closed while waiting to connect");
+                        done();
+                    }
+                    // Never started, queued, or still connecting - in which
+                    // case the connection is dropped once made
+                    connectFailed(null);
+                }
+                return true;
+            }
+
+            @Override
+            public Channel channel() {
+                return channel;
+            }
+
+            @Override
             public <T> WebsocketClientRequest onMessage(Class<T> type, WebsocketMessageHandler<T> handler) {
+                return onMessage(type, null, handler);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> WebsocketClientRequest onMessage(Class<T> type, Supplier<? extends T> target, WebsocketMessageHandler<T> handler) {
+                notNull("type", type);
+                notNull("handler", handler);
                 FrameCallback<Object> fc = new FrameCallback<Object>() {
                     int ix = 0;
 
                     @Override
                     public Object onMessage(WebSocketFrame frame, Object data, ChannelControl channel) throws Exception {
-                        return handler.onMessage(ix, type.cast(data), channel);
+                        return handler.onMessage(ix++, type.cast(data), channel);
                     }
                 };
-                FrameCallback<WebSocketFrame> f = new JsonFrameCallback(fc, mapper, type);
+                FrameCallback<WebSocketFrame> f = new JsonFrameCallback(fc, mapper, type, target);
                 return onMessage(f);
             }
 
+            @Override
+            public <T> WebsocketClientRequest onMessageElements(Class<T> type, WebsocketMessageHandler<T> handler) {
+                return onMessage(new ElementsFrameCallback<>(notNull("type", type), notNull("handler", handler)));
+            }
+
+            @Override
+            public <T> WebsocketClientRequest onMessages(Class<T> type, BatchHandler<T> handler) {
+                return onMessages(type, DEFAULT_MAX_BATCH, handler);
+            }
+
+            @Override
+            public <T> WebsocketClientRequest onMessages(Class<T> type, int maxBatch, BatchHandler<T> handler) {
+                if (maxBatch < 1) {
+                    throw new IllegalArgumentException("Batch size must be at least 1: " + maxBatch);
+                }
+                return onMessage(new BatchFrameCallback<>(notNull("type", type), maxBatch, notNull("handler", handler)));
+            }
+
+            @Override
+            public <T> WebsocketClientRequest onLatest(Class<T> type, Function<? super T, ?> key, Executor executor, WebsocketMessageHandler<T> handler) {
+                return onMessage(new ConflatingFrameCallback<>(notNull("type", type), notNull("key", key),
+                        notNull("executor", executor), notNull("handler", handler)));
+            }
+
+            @Override
+            public WebsocketClientRequest onMessage(MessageRouter router) {
+                if (notNull("router", router).routes().isEmpty() && router.otherwise() == null) {
+                    throw new IllegalArgumentException("Router has no routes");
+                }
+                return onMessage(new RoutingFrameCallback(router));
+            }
+
+            @Override
+            public WebsocketClientRequest onTextMessage(WebsocketTextHandler handler) {
+                return onMessage(new TextViewFrameCallback(notNull("handler", handler)));
+            }
+
+            @Override
+            public WebsocketClientRequest onBinaryMessage(WebsocketBinaryHandler handler) {
+                return onMessage(new ByteBufferFrameCallback(notNull("handler", handler)));
+            }
+
+            @Override
+            public WebsocketClientRequest transportProfile(TransportProfile profile) {
+                if (started.get()) {
+                    throw new IllegalStateException("Request already initiated, cannot change transport now");
+                }
+                this.profile = notNull("profile", profile);
+                return this;
+            }
+
+            @Override
+            public WebsocketClientRequest rateLimit(RateLimit limit) {
+                if (started.get()) {
+                    throw new IllegalStateException("Request already initiated, cannot change rate limit now");
+                }
+                this.rateLimit = notNull("limit", limit);
+                return this;
+            }
+
+            @Override
+            public WebsocketClientRequest journal(java.nio.file.Path file, int capacity) throws IOException {
+                if (started.get()) {
+                    throw new IllegalStateException("Request already initiated, cannot add a journal now");
+                }
+                if (journal != null) {
+                    throw new IllegalStateException("Journal already set");
+                }
+                MessageJournal j = journal = new MessageJournal(notNull("file", file), capacity);
+                onConnects = append(onConnects, (OnConnect) (URL ignored, ChannelControl ctrl) -> {
+                    // Anything written but not trimmed before a disconnect is
+                    // sent again - the server may not have received it
+                    journalSent = j.head();
+                    // Pick up where the pump left off once the socket drains
+                    ctrl.channel().pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+                            pumpJournal(ctrl);
+                            ctx.fireChannelWritabilityChanged();
+                        }
+                    });
+                    pumpJournal(ctrl);
+                });
+                return this;
+            }
+
+            @Override
+            public WebsocketClientRequest capture(java.nio.file.Path file, int maxBytes) throws IOException {
+                if (started.get()) {
+                    throw new IllegalStateException("Request already initiated, cannot capture now");
+                }
+                capture = new FrameCapture(notNull("file", file), maxBytes);
+                return this;
+            }
+
+            @Override
+            public WebsocketClientRequest send(Object message) throws IOException {
+                notNull("message", message);
+                MessageJournal j = journal;
+                ChannelControl ctrl = control;
+                if (j == null) {
+                    if (ctrl == null) {
+                        throw new IllegalStateException("Not connected, and no journal to hold "
+                                + "messages until connected");
+                    }
+                    ctrl.send(message);
+                    return this;
+                }
+                WebSocketFrame frame = toWebSocketFrame(message, ctrl == null ? null : ctrl.channel());
+                try {
+                    j.append(frame.content(), frame instanceof TextWebSocketFrame);
+                } finally {
+                    frame.release();
+                }
+                if (ctrl != null) {
+                    ctrl.channel().eventLoop().execute(() -> pumpJournal(ctrl));
+                }
+                return this;
+            }
+
+            private void pumpJournal(ChannelControl ctrl) {
+                if (control != ctrl) {
+                    // Disconnected since this was scheduled
+                    return;
+                }
+                MessageJournal j = journal;
+                Channel ch = ctrl.channel();
+                long end = j.tail();
+                // Only read as much of the journal into memory as the socket
+                // will take, so a large backlog stays in the file; the rest
+                // is sent when the channel becomes writable again
+                while (journalSent < end && ch.isWritable()) {
+                    long pos = journalSent;
+                    long next = journalSent = j.next(pos);
+                    ctrl.send(j.frameAt(pos, ch.alloc())).addListener((ChannelFuture f) -> {
+                        if (f.isSuccess()) {
+                            j.trim(next);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public WebsocketClientRequest codecOptions(CodecOptions options) {
+                if (started.get()) {
+                    throw new IllegalStateException("Request already initiated, cannot change codec now");
+                }
+                this.codec = notNull("options", options);
+                return this;
+            }
+
+            private CodecOptions codec() {
+                return codec == null ? codecOptions : codec;
+            }
+
+            @Override
+            public WebsocketClientRequest sameEventLoopAs(Channel inbound) {
+                if (started.get()) {
+                    throw new IllegalStateException("Request already initiated, cannot change event loop now");
+                }
+                eventLoop = notNull("inbound", inbound).eventLoop();
+                return this;
+            }
+
             @Override
             public WebsocketClientRequest onMessage(FrameCallback<WebSocketFrame> f) {
                 this.callback = f;
                 // Throw this on the queue so headers and query pairs can be set
                 // before executions.  Note this could be racy, in which case we
                 // need to block, or an explicit go() method.
-                group.execute((Runnable) () -> {
-                    if (started.compareAndSet(false, true)) {
-                        try {
-                            doConnect(callback);
-                        } catch (URISyntaxException | SSLException e) {
-                            Exceptions.chuck(e);
+                try {
+                    eventLoop().execute((Runnable) () -> {
+                        if (started.compareAndSet(false, true)) {
+                            if (closed.get()) {
+                                log("Closed before connecting");
+                                done();
+                                return;
+                            }
+                            registry.add(this);
+                            if (shutDown) {
+                                // shutdown() may have swept the registry before
+                                // this was added, so never start connecting
+                                log("Blather shut down before connecting");
+                                closed.set(true);
+                                connectFailed(null);
+                                ex.onException(new IllegalStateException("Blather has been shut down"), null);
+                                done();
+                                return;
+                            }
+                            if (!gate.limited()) {
+                                connect();
+                                return;
+                            }
+                            // Wait our turn if too many connections are already
+                            // being set up
+                            HandshakeGate.Ticket t = ticket = gate.ticket(host, eventLoop(), this::connect);
+                            gate.submit(t);
                         }
-                    }
-                });
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The event loops have already been shut down
+                    closed.set(true);
+                    connectFailed(null);
+                    done();
+                    throw new IllegalStateException("Blather has been shut down", e);
+                }
                 return this;
             }
 
@@ -324,11 +967,11 @@ final class WebSocketClientsImpl extends Blather {
                 return this;
             }
 
-            private final List<OnDisconnect> onDisconnects = new ArrayList<>();
+            private List<OnDisconnect> onDisconnects = Collections.emptyList();
 
             @Override
             public WebsocketClientRequest onDisconnect(OnDisconnect dc) {
-                onDisconnects.add(notNull("dc", dc));
+                onDisconnects = append(onDisconnects, notNull("dc", dc));
                 return this;
             }
 
@@ -336,7 +979,7 @@ final class WebSocketClientsImpl extends Blather {
 
                 private Throwable lastThrown;
                 private volatile Throwable thrown;
-                Set<Throwable> seen = ConcurrentHashMap.newKeySet();
+                private volatile Set<Throwable> seen;
 
                 @Override
                 public void rethrow() throws Throwable {
@@ -350,16 +993,23 @@ final class WebSocketClientsImpl extends Blather {
                 @Override
                 public void onException(Throwable t, ChannelHandlerContext ctx) {
                     if (onError != null) {
-                        if (!onError.onError(thrown)) {
+                        if (!onError.onError(t)) {
                             log("WebsocketErrorHandler suppressing exception", t);
                             return;
                         }
                     }
                     log("Exception thrown", t);
-                    if (seen.contains(t)) {
+                    Set<Throwable> seen = this.seen;
+                    if (seen == null) {
+                        synchronized (this) {
+                            if ((seen = this.seen) == null) {
+                                this.seen = seen = ConcurrentHashMap.newKeySet();
+                            }
+                        }
+                    }
+                    if (!seen.add(t)) {
                         return;
                     }
-                    seen.add(t);
                     if (thrown != null) {
                         thrown.addSuppressed(t);
                     } else {
@@ -376,33 +1026,55 @@ final class WebSocketClientsImpl extends Blather {
                 } finally {
                     if (group.isShutdown()) {
                         log("EventLoopGroup already shutdown, trigger await() exit immediately");
-                        latch.countDown();
+                        done();
                     } else {
                         log("Trigger await() exit in next round on event loop");
                         group.submit(new Runnable() {
                             @Override
                             public void run() {
                                 log("Triggering await() exit CountDownLatch");
-                                latch.countDown();
+                                done();
                             }
                         });
                     }
                 }
             };
 
-            void doConnect(FrameCallback<WebSocketFrame> frameCallback) throws URISyntaxException, SSLException {
-                latch.reset(1);
-                URL url = url(path);
-                URI uri = url.toURI();
-                log("Will connect to {0}", url);
-                final SslContext sslCtx;
-                if (ssl) {
-                    log("Using SSL");
-                    sslCtx = SslContextBuilder.forClient()
-                            .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
-                } else {
-                    sslCtx = null;
+            private ResettableCountDownLatch latch() {
+                ResettableCountDownLatch result = latch;
+                if (result == null) {
+                    synchronized (this) {
+                        if ((result = latch) == null) {
+                            latch = result = new ResettableCountDownLatch(1);
+                        }
+                    }
+                }
+                return result;
+            }
+
+            private void done() {
+                // await() checks the flag after creating the latch, so one
+                // or the other of us sees the other's write
+                done = true;
+                ResettableCountDownLatch l = latch;
+                if (l != null) {
+                    l.countDown();
                 }
+            }
+
+            private void notDone() {
+                done = false;
+                ResettableCountDownLatch l = latch;
+                if (l != null) {
+                    l.reset(1);
+                }
+            }
+
+            /**
+             * Create the handler which performs the handshake and dispatches
+             * frames for a connection.
+             */
+            WebSocketClientHandler newHandler(FrameCallback<WebSocketFrame> frameCallback, URL url, URI uri, long connectStarted) {
                 Function<Object, WebSocketFrame> fconvert = new Function<Object, WebSocketFrame>() {
                     @Override
                     public WebSocketFrame apply(Object t) {
@@ -419,77 +1091,192 @@ final class WebSocketClientsImpl extends Blather {
                     return callbackFor(callback, (Class) type);
                 };
 
-                DefaultHttpHeaders httpHeaders = new DefaultHttpHeaders();
-                for (HeaderEntry<?> e : headers) {
-                    e.decorate(httpHeaders);
-                }
+                HttpHeaders httpHeaders = handshakeHeaders();
+                CodecOptions codec = codec();
 
                 final WebSocketClientHandler handler
                         = new WebSocketClientHandler(frameCallback,
                                 WebSocketClientHandshakerFactory.newHandshaker(
-                                        uri, WebSocketVersion.V13, null, true, httpHeaders), convert, fconvert, ex);
+                                        uri, WebSocketVersion.V13, null, true, httpHeaders,
+                                        codec.maxFramePayload(), codec.masking(), codec.allowMaskMismatch()),
+                                convert, fconvert, ex);
 
                 if (log) {
-                    handler.logger = logger;
+                    handler.logger = logger();
                 }
+                handler.encoder = encoder;
+                handler.rateLimit = rateLimit;
                 handler.onHandshake((ChannelFuture f) -> {
+                    releaseTicket();
+                    observer.onHandshake(System.nanoTime() - connectStarted, f.cause());
                     if (!f.isSuccess()) {
                         log("Websocket handshake FAILED to {0}", url);
                     } else {
                         log("Websocket handshake SUCCESS to {0}", url);
+                        control = handler.ctrl(f.channel());
                         for (OnConnect oc : onConnects) {
                             oc.onConnect(url, handler.ctrl(f.channel()));
                         }
                     }
                 });
+                return handler;
+            }
+
+            /**
+             * Set up a newly connected channel to perform the handshake.
+             */
+            void attach(Channel ch, WebSocketClientHandler handler, SslContext sslCtx, URL url) {
+                channel = ch;
+                channel.closeFuture().addListener((ChannelFutureListener) (ChannelFuture f1) -> {
+                    // In case it closed mid-handshake
+                    releaseTicket();
+                    control = null;
+                    MessageJournal j = journal;
+                    if (j != null) {
+                        // Unmapped, so a later request can open the file
+                        // and send whatever was not written
+                        j.close();
+                    }
+                    connectionClosed();
+                    for (OnDisconnect dc : onDisconnects) {
+                        dc.onDisconnect(url, ex.thrown == null ? ex.lastThrown : ex.thrown);
+                    }
+                });
+                channel.closeFuture().addListener(closeListener);
+                log("Initialize SocketChannel {0}", ch);
+                ChannelPipeline p = ch.pipeline();
+                if (sslCtx != null) {
+                    p.addLast(sslCtx.newHandler(ch.alloc(), url.getHost().toString(), url.getPort().intValue()));
+                }
+                // The handshaker removes the codec and aggregator once the
+                // connection is upgraded
+                p.addLast(new HttpClientCodec(), new HttpObjectAggregator(8192));
+                if (!lowFootprint) {
+                    // Negotiating permessage-deflate costs a Deflater and
+                    // Inflater, with their native buffers, per connection
+                    p.addLast(WebSocketClientCompressionHandler.INSTANCE);
+                }
+                // These only look at websocket frames, so can be installed
+                // before the upgrade
+                CodecOptions codec = codec();
+                if (codec.validateUtf8()) {
+                    p.addLast(new Utf8FrameValidator());
+                }
+                if (codec.maxMessageSize() > 0) {
+                    p.addLast(new WebSocketFrameAggregator(codec.maxMessageSize()));
+                }
+                if (capture != null) {
+                    p.addLast(capture);
+                }
+                p.addLast(handler);
+            }
+
+            @Override
+            public ChannelControl control() {
+                return control;
+            }
+
+            /**
+             * Get the event loop this request connects and runs on.
+             */
+            private EventLoop eventLoop() {
+                EventLoop result = eventLoop;
+                if (result == null) {
+                    eventLoop = result = socket != null
+                            ? domainSocketLoop()
+                            : loops.eventLoopFor(host, port, path);
+                }
+                return result;
+            }
+
+            private void connect() {
+                try {
+                    doConnect(callback);
+                } catch (URISyntaxException | SSLException | RuntimeException e) {
+                    // Failed before reaching the endpoint, so it is not
+                    // counted against it
+                    releaseTicket();
+                    connectFailed(null);
+                    ex.onException(e, null);
+                    done();
+                    Exceptions.chuck(e);
+                }
+            }
 
+            private void releaseTicket() {
+                HandshakeGate.Ticket t = ticket;
+                if (t != null) {
+                    t.release();
+                }
+            }
+
+            void doConnect(FrameCallback<WebSocketFrame> frameCallback) throws URISyntaxException, SSLException {
+                notDone();
+                long connectStarted = System.nanoTime();
+                URL url = url();
+                URI uri = uri();
+                log("Will connect to {0}", url);
+                final SslContext sslCtx;
+                if (ssl) {
+                    log("Using SSL");
+                    sslCtx = sslContext();
+                } else {
+                    sslCtx = null;
+                }
+                final WebSocketClientHandler handler = newHandler(frameCallback, url, uri, connectStarted);
+
+                // The pipeline is only set up on the channel which wins the
+                // race to connect, so the handler is never shared
+                EventLoop loop = eventLoop();
                 Bootstrap b = new Bootstrap();
-                b.group(group)
-                        .channel(NioSocketChannel.class)
-                        .handler(new ChannelInitializer<SocketChannel>() {
-                            @Override
-                            protected void initChannel(SocketChannel ch) {
-                                log("Initialize SocketChannel {0}", ch);
-                                ChannelPipeline p = ch.pipeline();
-                                if (sslCtx != null) {
-                                    p.addLast(sslCtx.newHandler(ch.alloc(), url.getHost().toString(), url.getPort().intValue()));
-                                }
-                                p.addLast(
-                                        new HttpClientCodec(),
-                                        new HttpObjectAggregator(8192),
-                                        WebSocketClientCompressionHandler.INSTANCE,
-                                        handler);
-                            }
-                        });
-                b.connect(url.getHost().toString(), url.getPort().intValue()).addListener((ChannelFuture f) -> {
-                    log("Connected to {0}", f.channel().remoteAddress());
+                b.group(loop).handler(NO_OP_INITIALIZER);
+                observer.onConnecting();
+                String host = url.getHost().toString();
+                Future<Channel> connecting;
+                TransportProfile prof = profile == null ? transportProfile : profile;
+                if (socket != null) {
+                    b.channel(Transports.domainSocketChannel(loop));
+                    prof.configure(b, false);
+                    connecting = connected(loop, b.connect(Transports.domainSocketAddress(socket)));
+                } else {
+                    b.channel(Transports.socketChannel(loop));
+                    loops.configure(b);
+                    prof.configure(b, true);
+                    try {
+                        connecting = HappyEyeballs.connect(b, loop, resolver.resolve(host), url.getPort().intValue());
+                    } catch (UnknownHostException e) {
+                        connecting = loop.newFailedFuture(e);
+                    }
+                }
+                connecting.addListener((FutureListener<Channel>) f -> {
+                    Channel ch = f.getNow();
                     if (closed.get()) {
                         log("close() was called before connection established, aborting.");
-                        latch.countDown();
-                        f.channel().close();
+                        releaseTicket();
+                        connectFailed(null);
+                        done();
+                        if (ch != null) {
+                            ch.close();
+                        }
                         return;
                     }
                     if (f.isSuccess()) {
-                        channel = f.channel();
-                        channel.closeFuture().addListener((ChannelFutureListener) (ChannelFuture f1) -> {
-                            for (OnDisconnect dc : onDisconnects) {
-                                dc.onDisconnect(url, ex.thrown == null ? ex.lastThrown : ex.thrown);
-                            }
-                        });
-                        channel.closeFuture().addListener(closeListener);
-                        ChannelControl ctrl = handler.ctrl(channel);
+                        log("Connected to {0}", ch.remoteAddress());
+                        attach(ch, handler, sslCtx, url);
                     } else {
                         log("Connecting failed, wake up waiters.", f.cause());
+                        resolver.forget(host);
+                        releaseTicket();
+                        connectFailed(f.cause());
                         ex.onException(f.cause(), null);
-                        latch.countDown();
+                        done();
                     }
                 });
-
             }
 
             @Override
             public WebsocketClientRequest onConnect(OnConnect onConnect) {
-                onConnects.add(notNull("onConnect", onConnect));
+                onConnects = append(onConnects, notNull("onConnect", onConnect));
                 return this;
             }
 
@@ -498,11 +1285,10 @@ final class WebSocketClientsImpl extends Blather {
                 if (channel != null) {
                     throw new IllegalStateException("Already connected");
                 }
-                onConnects.add((OnConnect) (URL ignored, ChannelControl ctrl) -> {
+                onConnects = append(onConnects, (OnConnect) (URL ignored, ChannelControl ctrl) -> {
                     log("Send initial message {0} as web socket frame", message);
-                    WebSocketFrame frame = toWebSocketFrame(message, ctrl.channel());
                     throttle();
-                    ctrl.channel().writeAndFlush(frame);
+                    ctrl.send(message);
                 });
                 return this;
             }
@@ -510,7 +1296,10 @@ final class WebSocketClientsImpl extends Blather {
             @Override
             public WebsocketClientRequest await() throws Throwable {
                 ex.rethrow();
-                latch.await();
+                ResettableCountDownLatch l = latch();
+                if (!done) {
+                    l.await();
+                }
                 ex.rethrow();
                 return this;
             }
@@ -518,7 +1307,10 @@ final class WebSocketClientsImpl extends Blather {
             @Override
             public WebsocketClientRequest await(long duration, TimeUnit unit) throws Throwable {
                 ex.rethrow();
-                latch.await(duration, unit);
+                ResettableCountDownLatch l = latch();
+                if (!done) {
+                    l.await(duration, unit);
+                }
                 ex.rethrow();
                 return this;
             }
@@ -541,15 +1333,75 @@ final class WebSocketClientsImpl extends Blather {
         if (obj instanceof WebSocketFrame) {
             return (WebSocketFrame) obj;
         }
-        ByteBuf buf = channel == null ? ByteBufAllocator.DEFAULT.buffer() : channel.alloc().buffer();
-        if (obj instanceof CharSequence) {
-            buf.writeCharSequence((CharSequence) obj, StandardCharsets.UTF_8);
-            return new TextWebSocketFrame(buf);
+        ByteBuf buf = allocator(channel).buffer();
+        try {
+            if (obj instanceof CharSequence) {
+                buf.writeCharSequence((CharSequence) obj, StandardCharsets.UTF_8);
+                return new TextWebSocketFrame(buf);
+            } else {
+                mapper.writeValue((OutputStream) new ByteBufOutputStream(buf), obj);
+                return new BinaryWebSocketFrame(buf);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            buf.release();
+            throw e;
+        }
+    }
 
-        } else {
-            mapper.writeValue((OutputStream) new ByteBufOutputStream(buf), obj);
-            return new BinaryWebSocketFrame(buf);
+    /**
+     * Convert a callback's reply to a frame to return to the handler - or,
+     * if an encoder executor is set, queue it to be encoded there and return
+     * null.
+     *
+     * @param reply The reply or null
+     * @param channel The channel control passed to the callback
+     * @return A frame or null
+     * @throws IOException If encoding fails
+     */
+    WebSocketFrame reply(Object reply, ChannelControl channel) throws IOException {
+        if (reply != null && encoder != null && !(reply instanceof WebSocketFrame)) {
+            channel.send(reply);
+            return null;
         }
+        return toWebSocketFrame(reply, channel.channel());
+    }
+
+    /**
+     * Send one of several replies produced while handling a read, through
+     * the connection's encoder and rate limit if it has them, without
+     * flushing.
+     *
+     * @param reply The reply or null
+     * @param channel The channel
+     * @return true if the caller needs to flush the channel
+     * @throws IOException If encoding fails
+     */
+    boolean replyUnflushed(Object reply, ChannelControl channel) throws IOException {
+        if (reply == null) {
+            return false;
+        }
+        if (!(channel instanceof ChannelControlImpl)) {
+            channel.send(reply);
+            return false;
+        }
+        WebSocketFrame frame = reply(reply, channel);
+        return frame != null && ((ChannelControlImpl) channel).reply(frame, false);
+    }
+
+    /**
+     * Get the allocator frames for a channel should be encoded with - the
+     * channel's own if there is one, so buffers come from the same pool the
+     * transport profile configured.
+     *
+     * @param channel A channel or null
+     * @return An allocator
+     */
+    ByteBufAllocator allocator(Channel channel) {
+        if (channel != null) {
+            return channel.alloc();
+        }
+        ByteBufAllocator result = transportProfile.allocator();
+        return result == null ? PooledByteBufAllocator.DEFAULT : result;
     }
 
     static class HeaderEntry<T> {
@@ -571,43 +1423,412 @@ final class WebSocketClientsImpl extends Blather {
     class JsonFrameCallback<T> implements FrameCallback<WebSocketFrame> {
 
         private final FrameCallback<T> delegate;
-        private final ObjectMapper mapper;
+        private final ObjectReader reader;
         private final Class<T> type;
+        private final Supplier<? extends T> targets;
+        private final ByteBufInput in = new ByteBufInput();
+        private ObjectReader updater;
 
         public JsonFrameCallback(FrameCallback<T> delegate, ObjectMapper mapper, Class<T> type) {
+            this(delegate, mapper, type, null);
+        }
+
+        public JsonFrameCallback(FrameCallback<T> delegate, ObjectMapper mapper, Class<T> type, Supplier<? extends T> targets) {
             this.delegate = delegate;
-            this.mapper = mapper;
+            this.reader = mapper.readerFor(type);
             this.type = type;
+            this.targets = targets;
+        }
+
+        private ObjectReader reader() {
+            if (targets == null) {
+                return reader;
+            }
+            // Callbacks are only invoked on the channel's event loop, so one
+            // target per callback is enough to let Jackson update it in place
+            // rather than allocating a new instance for each message
+            if (updater == null) {
+                updater = reader.withValueToUpdate(notNull("target", targets.get()));
+            }
+            return updater;
         }
 
         @Override
-        @SuppressWarnings("unchecked")
         public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl channel) throws Exception {
-            if (type == String.class || type == CharSequence.class) {
-                CharSequence seq = frame instanceof TextWebSocketFrame ? ((TextWebSocketFrame) frame).text()
-                        : frame.content().readCharSequence(frame.content().readableBytes(), StandardCharsets.UTF_8);
-                if (type == String.class) {
-                    seq = seq.toString();
+            T obj = decode(type, reader(), data.content(), in);
+            T response = delegate.onMessage(frame, obj, channel);
+            return response == null ? null : reply(response, channel);
+        }
+
+        @Override
+        public void onConnect(ChannelControl channel) {
+            delegate.onConnect(channel);
+        }
+
+        @Override
+        public void onReadComplete(ChannelControl channel) throws Exception {
+            delegate.onReadComplete(channel);
+        }
+    }
+
+    /**
+     * Decode a message as JSON, or as a string if that is the requested type,
+     * reading from the buffer's backing array where it has one and otherwise
+     * through the passed stream, which is left detached from the buffer.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T decode(Class<T> type, ObjectReader reader, ByteBuf content, ByteBufInput in) throws IOException {
+        int start = content.readerIndex();
+        int length = content.readableBytes();
+        if (type == String.class || type == CharSequence.class) {
+            return (T) content.toString(start, length, StandardCharsets.UTF_8);
+        }
+        try {
+            return content.hasArray()
+                    ? reader.readValue(content.array(), content.arrayOffset() + start, length)
+                    : reader.readValue(in.reset(content));
+        } catch (JsonMappingException ex) {
+            throw parseFailure(content, start, length, ex);
+        } finally {
+            in.reset(null);
+        }
+    }
+
+    /**
+     * Create a streaming parser over a message, the same way
+     * {@link #decode} reads one; the caller must detach the stream from the
+     * buffer when done.
+     */
+    static JsonParser parser(JsonFactory factory, ByteBuf content, ByteBufInput in) throws IOException {
+        return content.hasArray()
+                ? factory.createParser(content.array(), content.arrayOffset() + content.readerIndex(), content.readableBytes())
+                : factory.createParser((InputStream) in.reset(content));
+    }
+
+    static IOException parseFailure(ByteBuf content, int start, int length, Exception cause) {
+        CharSequence body = content.toString(start, length, StandardCharsets.UTF_8);
+        return new IOException("Error parsing message '" + body + "'", cause);
+    }
+
+    static final int DEFAULT_MAX_BATCH = 1024;
+
+    class BatchFrameCallback<T> implements FrameCallback<WebSocketFrame> {
+
+        private final BatchHandler<T> handler;
+        private final ObjectReader reader;
+        private final Class<T> type;
+        private final int maxBatch;
+        private final ByteBufInput in = new ByteBufInput();
+        private final List<T> batch = new ArrayList<>();
+        private ChannelControl last;
+        private int ix;
+
+        BatchFrameCallback(Class<T> type, int maxBatch, BatchHandler<T> handler) {
+            this.type = type;
+            this.maxBatch = maxBatch;
+            this.handler = handler;
+            this.reader = mapper.readerFor(type);
+        }
+
+        @Override
+        public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl channel) throws Exception {
+            last = channel;
+            batch.add(decode(type, reader, data.content(), in));
+            if (batch.size() >= maxBatch) {
+                deliver(channel);
+            }
+            return null;
+        }
+
+        @Override
+        public void onReadComplete(ChannelControl channel) throws Exception {
+            if (!batch.isEmpty()) {
+                deliver(channel);
+            }
+        }
+
+        @Override
+        public void onDisconnect() {
+            // Anything decoded after the last read completed should still
+            // reach the handler, though replies can no longer be sent
+            if (!batch.isEmpty() && last != null) {
+                try {
+                    deliver(last);
+                } catch (Exception e) {
+                    Exceptions.chuck(e);
                 }
-                return toWebSocketFrame((T) delegate.onMessage(frame, (T) seq, channel), channel.channel());
             }
+        }
+
+        private void deliver(ChannelControl channel) throws Exception {
+            int first = ix;
+            ix += batch.size();
+            List<?> replies;
             try {
-                T obj = mapper.readValue((InputStream) new ByteBufInputStream(data.content()), type);
-                T response = delegate.onMessage(frame, obj, channel);
-                if (response != null) {
-                    return toWebSocketFrame(response, channel.channel());
+                replies = handler.onMessages(first, batch, channel);
+            } finally {
+                batch.clear();
+            }
+            if (replies == null || replies.isEmpty()) {
+                return;
+            }
+            boolean written = false;
+            for (Object r : replies) {
+                written |= replyUnflushed(r, channel);
+            }
+            if (written) {
+                channel.channel().flush();
+            }
+        }
+    }
+
+    class ConflatingFrameCallback<T> implements FrameCallback<WebSocketFrame> {
+
+        private final WebsocketMessageHandler<T> handler;
+        private final Function<? super T, ?> key;
+        private final Executor executor;
+        private final ObjectReader reader;
+        private final Class<T> type;
+        private final ByteBufInput in = new ByteBufInput();
+        private final Map<Object, T> latest = new ConcurrentHashMap<>();
+        // Counts messages added since the drain last caught up; whoever
+        // takes it from zero schedules the drain, so at most one runs
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Runnable drain = this::drain;
+        private volatile ChannelControl channel;
+        private int ix;
+
+        ConflatingFrameCallback(Class<T> type, Function<? super T, ?> key, Executor executor, WebsocketMessageHandler<T> handler) {
+            this.type = type;
+            this.key = key;
+            this.executor = executor;
+            this.handler = handler;
+            this.reader = mapper.readerFor(type);
+        }
+
+        @Override
+        public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl channel) throws Exception {
+            this.channel = channel;
+            T obj = decode(type, reader, data.content(), in);
+            Object k = key.apply(obj);
+            if (k == null) {
+                throw new IOException("Null key for " + obj);
+            }
+            latest.put(k, obj);
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(drain);
+            }
+            return null;
+        }
+
+        private void drain() {
+            int missed = pending.get();
+            do {
+                for (Map.Entry<Object, T> e : latest.entrySet()) {
+                    T value = e.getValue();
+                    // If a newer value replaced this one while we were
+                    // iterating, leave it for the next pass
+                    if (latest.remove(e.getKey(), value)) {
+                        deliver(value);
+                    }
                 }
+            } while ((missed = pending.addAndGet(-missed)) != 0);
+        }
+
+        private void deliver(T value) {
+            ChannelControl ctrl = channel;
+            try {
+                Object reply = handler.onMessage(ix++, value, ctrl);
+                if (reply != null) {
+                    ctrl.send(reply);
+                }
+            } catch (Exception e) {
+                ctrl.channel().pipeline().fireExceptionCaught(e);
+            }
+        }
+    }
+
+    class ElementsFrameCallback<T> implements FrameCallback<WebSocketFrame> {
+
+        private final WebsocketMessageHandler<T> handler;
+        private final ObjectReader reader;
+        private final JsonFactory factory = mapper.getFactory();
+        private final ByteBufInput in = new ByteBufInput();
+        private int ix;
+
+        ElementsFrameCallback(Class<T> type, WebsocketMessageHandler<T> handler) {
+            this.handler = handler;
+            this.reader = mapper.readerFor(type);
+        }
+
+        @Override
+        public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl channel) throws Exception {
+            ByteBuf content = data.content();
+            int start = content.readerIndex();
+            int length = content.readableBytes();
+            boolean replied = false;
+            boolean inArray = false;
+            int count = 0;
+            // Bind one element at a time as the parser walks the array, so
+            // the handler sees the first element before the rest are parsed
+            // and the elements never need to all be in memory at once
+            try (JsonParser parser = parser(factory, content, in)) {
+                JsonToken tok = parser.nextToken();
+                if (tok == JsonToken.START_ARRAY) {
+                    inArray = true;
+                    while ((tok = parser.nextToken()) != JsonToken.END_ARRAY) {
+                        if (tok == null) {
+                            throw new IOException("Unterminated array after " + count + " elements");
+                        }
+                        replied |= deliver(reader.readValue(parser), channel);
+                        count++;
+                    }
+                } else if (tok != null) {
+                    replied |= deliver(reader.readValue(parser), channel);
+                }
+            } catch (JsonEOFException ex) {
+                // Jackson reports running out of input inside the array
+                // itself, rather than returning a null token
+                if (inArray) {
+                    throw new IOException("Unterminated array after " + count + " elements", ex);
+                }
+                throw parseFailure(content, start, length, ex);
             } catch (JsonMappingException ex) {
-                data.content().resetReaderIndex();
-                CharSequence body = data.content().readCharSequence(data.content().readableBytes(), StandardCharsets.UTF_8);
-                throw new IOException("Error parsing message '" + body + "'", ex);
+                throw parseFailure(content, start, length, ex);
+            } finally {
+                in.reset(null);
+                if (replied) {
+                    channel.channel().flush();
+                }
             }
             return null;
         }
 
+        private boolean deliver(T element, ChannelControl channel) throws Exception {
+            return replyUnflushed(handler.onMessage(ix++, element, channel), channel);
+        }
+    }
+
+    class RoutingFrameCallback implements FrameCallback<WebSocketFrame> {
+
+        private final String field;
+        private final Map<String, CompiledRoute<?>> routes = new HashMap<>();
+        private final TextViewFrameCallback otherwise;
+        private final JsonFactory factory = mapper.getFactory();
+        private final ByteBufInput in = new ByteBufInput();
+
+        @SuppressWarnings("unchecked")
+        RoutingFrameCallback(MessageRouter router) {
+            this.field = router.field();
+            // Readers are created once here, not per message; each one only
+            // binds the properties its target type declares, since the types
+            // typically will not declare the discriminator
+            for (Map.Entry<String, MessageRouter.Route<?>> e : router.routes().entrySet()) {
+                routes.put(e.getKey(), new CompiledRoute(e.getValue()));
+            }
+            otherwise = router.otherwise() == null ? null : new TextViewFrameCallback(router.otherwise());
+        }
+
         @Override
-        public void onConnect(ChannelControl channel) {
-            delegate.onConnect(channel);
+        public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl channel) throws Exception {
+            ByteBuf content = data.content();
+            int start = content.readerIndex();
+            int length = content.readableBytes();
+            String key;
+            try (JsonParser parser = parser(factory, content, in)) {
+                key = discriminator(parser);
+            } catch (JsonProcessingException ex) {
+                // Not JSON at all, which no route or fallback can handle
+                throw parseFailure(content, start, length, ex);
+            } finally {
+                in.reset(null);
+                content.readerIndex(start);
+            }
+            CompiledRoute<?> route = key == null ? null : routes.get(key);
+            if (route == null) {
+                return otherwise == null ? null : otherwise.onMessage(frame, data, channel);
+            }
+            return route.dispatch(content, channel);
+        }
+
+        private String discriminator(JsonParser parser) throws IOException {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals(name)) {
+                    return value.isScalarValue() ? parser.getValueAsString() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+
+        final class CompiledRoute<T> {
+
+            private final Class<T> type;
+            private final WebsocketMessageHandler<T> handler;
+            private final ObjectReader reader;
+            private int ix;
+
+            CompiledRoute(MessageRouter.Route<T> route) {
+                this.type = route.type;
+                this.handler = route.handler;
+                this.reader = mapper.readerFor(type).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+            }
+
+            WebSocketFrame dispatch(ByteBuf content, ChannelControl channel) throws Exception {
+                T obj = decode(type, reader, content, in);
+                return reply(handler.onMessage(ix++, obj, channel), channel);
+            }
+        }
+    }
+
+    class TextViewFrameCallback implements FrameCallback<WebSocketFrame> {
+
+        private final WebsocketTextHandler handler;
+        private final ByteBufCharSequence view = new ByteBufCharSequence();
+        private int ix;
+
+        TextViewFrameCallback(WebsocketTextHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl channel) throws Exception {
+            ByteBuf content = data.content();
+            int start = content.readerIndex();
+            int length = content.readableBytes();
+            CharSequence text = ByteBufCharSequence.isAscii(content, start, length)
+                    ? view.reset(content, start, length)
+                    : content.toString(start, length, StandardCharsets.UTF_8);
+            try {
+                return reply(handler.onMessage(ix++, text, channel), channel);
+            } finally {
+                view.reset(null, 0, 0);
+            }
+        }
+    }
+
+    class ByteBufferFrameCallback implements FrameCallback<WebSocketFrame> {
+
+        private final WebsocketBinaryHandler handler;
+        private int ix;
+
+        ByteBufferFrameCallback(WebsocketBinaryHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl channel) throws Exception {
+            ByteBuf content = data.content();
+            // Read-only, so a handler cannot scribble on a pooled buffer
+            // that will be reused once the frame is released
+            ByteBuffer view = content.nioBuffer(content.readerIndex(), content.readableBytes())
+                    .asReadOnlyBuffer();
+            return reply(handler.onMessage(ix++, view, channel), channel);
         }
     }
 
@@ -623,15 +1844,17 @@ final class WebSocketClientsImpl extends Blather {
         public WebSocketFrame onMessage(WebSocketFrame frame, WebSocketFrame data, ChannelControl channel) throws Exception {
             CharSequence seq = data.content().readCharSequence(frame.content().readableBytes(), StandardCharsets.UTF_8);
             String res = delegate.onMessage(frame, seq.toString(), channel);
-            if (res != null) {
-                return new TextWebSocketFrame(res);
-            }
-            return null;
+            return reply(res, channel);
         }
 
         @Override
         public void onConnect(ChannelControl channel) {
             delegate.onConnect(channel);
         }
+
+        @Override
+        public void onReadComplete(ChannelControl channel) throws Exception {
+            delegate.onReadComplete(channel);
+        }
     }
 }
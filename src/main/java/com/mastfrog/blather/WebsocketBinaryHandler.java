@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Handler which receives message payloads as a ByteBuffer sharing memory with
+ * the inbound frame, for parsers that can work directly on bytes with no
+ * decoding or copying. Both text and binary frames are delivered.
+ * <p>
+ * The ByteBuffer is read-only, and only valid for the duration of the call -
+ * the underlying buffer is released and may be reused once it returns, so
+ * copy out anything you need to keep.
+ *
+ * @author Tim Boudreau
+ */
+@FunctionalInterface
+public interface WebsocketBinaryHandler {
+
+    /**
+     * Called when a message is received.
+     *
+     * @param msgIndex The cumulative count of the messages sent to <i>this
+     * handler</i>
+     * @param data The payload, read-only and valid only until this method
+     * returns
+     * @param ctrl Object for manipulating the channel or sending responses
+     * @return A reply message to marshal and send, or null to send no reply
+     * @throws Exception If something goes wrong
+     */
+    Object onMessage(int msgIndex, ByteBuffer data, ChannelControl ctrl) throws Exception;
+}
@@ -23,9 +23,15 @@
  */
 package com.mastfrog.blather;
 
+import io.netty.channel.Channel;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import com.mastfrog.acteur.headers.HeaderValueType;
 import com.mastfrog.acteur.headers.Headers;
 import static com.mastfrog.util.preconditions.Checks.notNull;
@@ -68,6 +74,24 @@ public interface WebsocketClientRequest extends AutoCloseable {
      */
     <T> WebsocketClientRequest onMessage(Class<T> type, WebsocketMessageHandler<T> handler);
 
+    /**
+     * Set up a handler which will receive and be able to reply to web socket
+     * messages, reusing a single instance of the message type for every
+     * message on the connection - Jackson populates the existing object in
+     * place rather than creating a new one. The instance passed to the handler
+     * is only valid for the duration of the call, and must not be retained or
+     * handed off to another thread; properties absent from a message retain
+     * whatever values the previous message left in them. Has no effect for
+     * String and CharSequence message types.
+     *
+     * @param <T> The type to convert message payloads to
+     * @param type The type to convert message payloads to
+     * @param target Creates the instance to reuse (called once per connection)
+     * @param handler The callback
+     * @return this
+     */
+    <T> WebsocketClientRequest onMessage(Class<T> type, Supplier<? extends T> target, WebsocketMessageHandler<T> handler);
+
     /**
      * Set up a handler which will receive and be able to reply to web socket
      * messages, which will also receive the raw WebSocketFrame.  Use
@@ -79,6 +103,166 @@ public interface WebsocketClientRequest extends AutoCloseable {
      */
     WebsocketClientRequest onMessage(FrameCallback<WebSocketFrame> cb);
 
+    /**
+     * Set up a handler for messages which are JSON arrays, which is called
+     * once for each <i>element</i> of the array, as the array is parsed,
+     * rather than once with the entire array bound to a list. Useful for
+     * servers which send large snapshots as a single message. Messages which
+     * are not arrays are passed to the handler as a single element. The index
+     * passed to the handler is the cumulative count of elements. Replies from
+     * the handler are flushed together once the message has been processed.
+     *
+     * @param <T> The element type
+     * @param type The element type
+     * @param handler The callback
+     * @return this
+     */
+    <T> WebsocketClientRequest onMessageElements(Class<T> type, WebsocketMessageHandler<T> handler);
+
+    /**
+     * Set up a handler which receives the messages decoded in each read from
+     * the socket together, as a list, in batches of up to 1024.
+     *
+     * @param <T> The type to convert message payloads to
+     * @param type The type to convert message payloads to
+     * @param handler The callback
+     * @return this
+     */
+    <T> WebsocketClientRequest onMessages(Class<T> type, BatchHandler<T> handler);
+
+    /**
+     * Set up a handler which receives the messages decoded in each read from
+     * the socket together, as a list. A batch is delivered when the read
+     * completes, or as soon as it reaches <code>maxBatch</code> messages,
+     * whichever comes first. Replies from the handler are flushed together
+     * once per batch.
+     *
+     * @param <T> The type to convert message payloads to
+     * @param type The type to convert message payloads to
+     * @param maxBatch The maximum number of messages to deliver at once
+     * @param handler The callback
+     * @return this
+     */
+    <T> WebsocketClientRequest onMessages(Class<T> type, int maxBatch, BatchHandler<T> handler);
+
+    /**
+     * Set up a handler for feeds where only the most recent message for each
+     * key matters, such as prices or status updates. Messages are decoded on
+     * the event loop and stored by key, replacing any older message with the
+     * same key which the handler has not seen yet; the handler runs on the
+     * passed executor and is only given the latest message for each key. A
+     * handler which falls behind skips stale values rather than working
+     * through a backlog, and memory use is bounded by the number of distinct
+     * keys. The handler is never called concurrently with itself; replies
+     * it returns are sent from the executor thread.
+     *
+     * @param <T> The type to convert message payloads to
+     * @param type The type to convert message payloads to
+     * @param key Computes the key a message replaces older messages for -
+     * must not return null
+     * @param executor The executor the handler runs on
+     * @param handler The callback
+     * @return this
+     */
+    <T> WebsocketClientRequest onLatest(Class<T> type, Function<? super T, ?> key, Executor executor, WebsocketMessageHandler<T> handler);
+
+    /**
+     * Limit how fast messages are written to this connection. Messages sent
+     * faster than the limit allows are queued on the connection's event loop
+     * and written as the limit permits, highest
+     * {@link ChannelControl#send(java.lang.Object, com.mastfrog.blather.Priority) priority}
+     * first. Frames written directly to the channel bypass the limit.
+     *
+     * @param limit The rate limit
+     * @return this
+     * @throws IllegalStateException if the request has already been initiated
+     */
+    WebsocketClientRequest rateLimit(RateLimit limit);
+
+    /**
+     * Keep messages passed to {@link #send(java.lang.Object)} in a journal
+     * file until they have been written to the connection. The journal is a
+     * memory-mapped ring buffer of fixed size, so a backlog of messages does
+     * not grow the heap; messages are replayed in order when the connection
+     * is established, and removed from the journal once written. Messages
+     * which could not be sent before the connection closed or the process
+     * exited are sent by the next request which uses the same file, which
+     * must be opened with the same capacity.
+     *
+     * @param file The journal file, created if it does not exist
+     * @param capacity The number of bytes of messages the journal can hold
+     * @return this
+     * @throws IOException If the file cannot be opened or is not a journal
+     * with this capacity
+     * @throws IllegalStateException if the request has already been initiated
+     */
+    WebsocketClientRequest journal(Path file, int capacity) throws IOException;
+
+    /**
+     * Send a message on this connection, converted to a frame as
+     * {@link ChannelControl#send(java.lang.Object)} does. If a
+     * {@link #journal(java.nio.file.Path, int) journal} is set, the message is
+     * added to it and sent when the connection is up; otherwise the
+     * connection must already be established.
+     *
+     * @param message The message
+     * @return this
+     * @throws IOException If the message cannot be encoded, or the journal
+     * is full
+     * @throws IllegalStateException if there is no journal and the
+     * connection is not established, or the connection has closed, which
+     * closes the journal
+     */
+    WebsocketClientRequest send(Object message) throws IOException;
+
+    /**
+     * Record every frame this connection sends and receives, with its
+     * timestamp and opcode, to a memory-mapped file which can be replayed
+     * with {@link Blather#replay(java.nio.file.Path)}. The file is replaced
+     * if it exists; once it reaches the maximum size, further frames are
+     * not recorded.
+     *
+     * @param file The file to record to
+     * @param maxBytes The maximum number of bytes of frames to record, at
+     * least 14 and less than 2GB
+     * @return this
+     * @throws IOException If the file cannot be created
+     * @throws IllegalArgumentException if maxBytes is out of range
+     * @throws IllegalStateException if the request has already been initiated
+     */
+    WebsocketClientRequest capture(Path file, int maxBytes) throws IOException;
+
+    /**
+     * Dispatch JSON messages to handlers for different types based on the
+     * value of a discriminator property, binding each message only to the
+     * type its route asks for.
+     *
+     * @param router A router
+     * @return this
+     */
+    WebsocketClientRequest onMessage(MessageRouter router);
+
+    /**
+     * Set up a handler which receives message text without copying where
+     * possible - pure ASCII payloads are passed as a view over the bytes of
+     * the frame, and are not decoded at all. The CharSequence is only valid
+     * until the handler returns.
+     *
+     * @param handler The callback
+     * @return this
+     */
+    WebsocketClientRequest onTextMessage(WebsocketTextHandler handler);
+
+    /**
+     * Set up a handler which receives message payloads as a ByteBuffer
+     * sharing memory with the inbound frame, with no decoding or copying. The
+     * ByteBuffer is read-only and only valid until the handler returns.
+     *
+     * @param handler The callback
+     * @return this
+     */
+    WebsocketClientRequest onBinaryMessage(WebsocketBinaryHandler handler);
+
     /**
      * Wait for the request to complete. Any exceptions thrown while processing
      * the connection will be rethrown when this call exits.
@@ -198,6 +382,37 @@ public interface WebsocketClientRequest extends AutoCloseable {
      */
     WebsocketClientRequest onDisconnect(OnDisconnect dc);
 
+    /**
+     * Use different socket and buffer settings for this connection than
+     * the Blather it was created from.
+     *
+     * @param profile The profile
+     * @return this
+     */
+    WebsocketClientRequest transportProfile(TransportProfile profile);
+
+    /**
+     * Use different frame size limits, masking or UTF-8 validation for this
+     * connection than the Blather it was created from.
+     *
+     * @param options The codec options
+     * @return this
+     */
+    WebsocketClientRequest codecOptions(CodecOptions options);
+
+    /**
+     * Run this connection on the same event loop as another channel - such
+     * as the inbound server channel whose request caused this connection to
+     * be made - so messages can be passed between the two without handing
+     * them off to another thread. The event loop group this Blather uses
+     * should be the one the other channel belongs to, or the same kind (see
+     * {@link ClientEventLoops}).
+     *
+     * @param inbound The channel whose event loop should be used
+     * @return this
+     */
+    WebsocketClientRequest sameEventLoopAs(Channel inbound);
+
     /**
      * Turn on detailed logging for this request.
      *
@@ -205,4 +420,15 @@ public interface WebsocketClientRequest extends AutoCloseable {
      */
     WebsocketClientRequest log();
 
+    /**
+     * Create an immutable template from the path, query parameters, headers,
+     * transport profile, codec options, error handler and logging settings
+     * of this request, for creating many requests with the same
+     * configuration cheaply. Handlers and messages to send on connect are
+     * not part of the template.
+     *
+     * @return A template
+     */
+    WebsocketRequestTemplate template();
+
 }
@@ -24,6 +24,7 @@
 package com.mastfrog.blather;
 
 import com.mastfrog.url.Protocol;
+import io.netty.util.concurrent.Future;
 
 /**
  * A websocket client that knows what host and port and protocol it is talking
@@ -53,6 +54,60 @@ public interface WebsocketHostClient {
      */
     WebsocketClientRequest request(String path, Object sendWhenConnected);
 
+    /**
+     * Create a template for spawning many requests to the same path.
+     *
+     * @param path The path
+     * @return A template
+     */
+    default WebsocketRequestTemplate template(String path) {
+        return request(path).template();
+    }
+
+    /**
+     * Open a connection which carries many logical streams, each with its
+     * own handler and flow control, in a compact binary envelope which the
+     * server must also understand (see {@link MultiplexedConnection}).
+     *
+     * @param path The path
+     * @param initialCredit The number of messages the server may send on
+     * each stream before we grant it more credit
+     * @return A multiplexed connection
+     */
+    MultiplexedConnection multiplex(String path, int initialCredit);
+
+    /**
+     * Open a connection which carries many logical streams, granting each
+     * stream an initial credit of 64 messages.
+     *
+     * @param path The path
+     * @return A multiplexed connection
+     */
+    default MultiplexedConnection multiplex(String path) {
+        return multiplex(path, 64);
+    }
+
+    /**
+     * Send one message to every currently connected request created by this
+     * client. The message is encoded once, and the resulting buffer shared by
+     * the frames written to each connection.
+     *
+     * @param message The message - a String or other CharSequence, a
+     * WebSocketFrame (which will be released once sent), or an object to
+     * convert to JSON
+     * @return A future which completes once the message has been written to
+     * every connection, reporting any which failed
+     */
+    Future<BroadcastResult> broadcast(Object message);
+
+    /**
+     * Get the number of connections created by this client which are
+     * connecting or open.
+     *
+     * @return A count
+     */
+    int openConnections();
+
     /**
      * Get the port requests will be made to.
      *
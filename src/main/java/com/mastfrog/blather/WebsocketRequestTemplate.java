@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.net.URI;
+
+/**
+ * An immutable snapshot of a request's path, query parameters, headers and
+ * logging and error handling settings, from which any number of requests can
+ * be created. The URL, the handshake headers and the TLS context are computed
+ * once when the template is created, rather than for each connection, so
+ * opening thousands of connections to the same websocket is cheap. Obtain one
+ * from {@link WebsocketClientRequest#template()} or
+ * {@link WebsocketHostClient#template(java.lang.String)}.
+ *
+ * @author Tim Boudreau
+ */
+public interface WebsocketRequestTemplate {
+
+    /**
+     * Create a new request from this template. Headers and query parameters
+     * may still be added to it, at the cost of it computing its own URL or
+     * headers.
+     *
+     * @return A request
+     */
+    WebsocketClientRequest request();
+
+    /**
+     * Create a new request from this template which will send a message
+     * once connected.
+     *
+     * @param sendWhenConnected An object to send over the wire once the
+     * websocket handshake is completed
+     * @return A request
+     */
+    WebsocketClientRequest request(Object sendWhenConnected);
+
+    /**
+     * Get the URI requests created from this template connect to.
+     *
+     * @return A URI
+     */
+    URI uri();
+}
@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+/**
+ * Handler for text messages which avoids decoding and copying the payload
+ * where possible: if the payload is pure ASCII, the CharSequence passed is a
+ * read-only view over the frame's bytes; otherwise the UTF-8 payload is
+ * decoded into a String as usual.
+ * <p>
+ * The CharSequence is only valid for the duration of the call - the
+ * underlying buffer is released once it returns, so copy it (e.g. by calling
+ * <code>toString()</code>) if you need to keep it.
+ *
+ * @author Tim Boudreau
+ */
+@FunctionalInterface
+public interface WebsocketTextHandler {
+
+    /**
+     * Called when a message is received.
+     *
+     * @param msgIndex The cumulative count of the messages sent to <i>this
+     * handler</i>
+     * @param text The message text, valid only until this method returns
+     * @param ctrl Object for manipulating the channel or sending responses
+     * @return A reply message to marshal and send, or null to send no reply
+     * @throws Exception If something goes wrong
+     */
+    Object onMessage(int msgIndex, CharSequence text, ChannelControl ctrl) throws Exception;
+}
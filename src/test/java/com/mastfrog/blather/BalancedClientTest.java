@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.blather.BalancedClient.Endpoint;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks how a BalancedClient assigns requests to endpoints and releases
+ * them, and how it ejects and brings back endpoints which fail.
+ *
+ * @author Tim Boudreau
+ */
+public class BalancedClientTest {
+
+    private final ManualTicker ticker = new ManualTicker();
+    private WebSocketClientsImpl clients;
+
+    @Before
+    public void setUp() {
+        clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+    }
+
+    @Test
+    public void testRequestsAreCountedWhenAssigned() {
+        BalancedClient client = balanced(LoadBalancing.LEAST_CONNECTIONS, 3);
+        // None of these has started connecting, but each must still count
+        List<Integer> used = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            used.add(endpointOf(client.request("/ws")).index);
+        }
+        used.sort(null);
+        assertEquals(Arrays.asList(0, 0, 1, 1, 2, 2), used);
+
+        Endpoint first = client.endpoints[0];
+        first.onConnectFailed(null);
+        first.onConnectFailed(null);
+        assertSame(first, endpointOf(client.request("/ws")));
+    }
+
+    @Test
+    public void testClosingBeforeStartingReleasesTheEndpoint() {
+        BalancedClient client = balanced(LoadBalancing.LEAST_CONNECTIONS, 1);
+        Endpoint e = client.endpoints[0];
+        WebsocketClientRequest req = client.request("/ws");
+        assertEquals(1, e.outstanding.get());
+        req.close();
+        assertEquals(0, e.outstanding.get());
+        req.close();
+        assertEquals(0, e.outstanding.get());
+    }
+
+    @Test
+    public void testTemplateRequestsAreAssigned() {
+        BalancedClient client = balanced(LoadBalancing.LEAST_CONNECTIONS, 2);
+        WebsocketRequestTemplate template = client.template("/ws");
+        WebsocketClientRequest one = template.request();
+        WebsocketClientRequest two = template.request("hello");
+        assertEquals(1, client.endpoints[0].outstanding.get());
+        assertEquals(1, client.endpoints[1].outstanding.get());
+        one.close();
+        two.close();
+        assertEquals(0, client.endpoints[0].outstanding.get());
+        assertEquals(0, client.endpoints[1].outstanding.get());
+    }
+
+    @Test
+    public void testFailingToCreateARequestReleasesTheEndpoint() {
+        BalancedClient client = balanced(LoadBalancing.LEAST_CONNECTIONS, 1);
+        try {
+            client.request(null);
+            fail("Null path accepted");
+        } catch (NullPointerException | IllegalArgumentException expected) {
+            // ok
+        }
+        assertEquals(0, client.endpoints[0].outstanding.get());
+    }
+
+    @Test
+    public void testConnectSetupFailureReleasesTheEndpoint() throws Throwable {
+        BalancedClient client = balanced(LoadBalancing.LEAST_CONNECTIONS, 1);
+        Endpoint e = client.endpoints[0];
+        // Netty rejects a header name containing a space while the handshake
+        // request is built, before anything is sent to the endpoint
+        WebsocketClientRequest req = client.request("/ws")
+                .addHeader(Headers.stringHeader("Not Valid"), "x");
+        assertEquals(1, e.outstanding.get());
+        req.onMessage(String.class, (ix, msg, ctrl) -> null);
+        try {
+            req.await(10, TimeUnit.SECONDS);
+            fail("Invalid header accepted");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+        assertEquals(0, e.outstanding.get());
+        // A local failure says nothing about the endpoint
+        assertSame(e, client.pick());
+        assertFalse(e.toString(), e.toString().contains("failures"));
+    }
+
+    @Test
+    public void testLowestLatencySpreadsByLatency() {
+        BalancedClient client = balanced(LoadBalancing.LOWEST_LATENCY, 2);
+        Endpoint fast = client.endpoints[0];
+        Endpoint slow = client.endpoints[1];
+        fast.onHandshake(TimeUnit.MILLISECONDS.toNanos(10), null);
+        slow.onHandshake(TimeUnit.MILLISECONDS.toNanos(20), null);
+
+        int toFast = 0;
+        for (int i = 0; i < 30; i++) {
+            if (endpointOf(client.request("/ws")) == fast) {
+                toFast++;
+            }
+        }
+        // Twice as fast, so about twice the connections - but not all
+        assertEquals(20, toFast);
+    }
+
+    @Test
+    public void testFailingEndpointIsEjectedWithBackOff() {
+        BalancedClient client = balanced(LoadBalancing.LEAST_CONNECTIONS, 2);
+        Endpoint bad = client.endpoints[0];
+        Endpoint good = client.endpoints[1];
+        for (int i = 0; i < BalancedClient.EJECT_AFTER_FAILURES; i++) {
+            bad.onHandshake(1, new IOException("refused"));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertSame(good, endpointOf(client.request("/ws")));
+        }
+
+        ticker.advance(5, TimeUnit.SECONDS);
+        assertSame("Back after the first ejection", bad, client.pick());
+
+        // Still failing, so the next ejection is twice as long
+        bad.onHandshake(1, new IOException("refused"));
+        ticker.advance(9, TimeUnit.SECONDS);
+        assertSame(good, client.pick());
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertSame(bad, client.pick());
+
+        // A successful handshake resets the count
+        bad.onHandshake(1, null);
+        bad.onHandshake(1, new IOException("refused"));
+        assertSame(bad, client.pick());
+    }
+
+    @Test
+    public void testSomethingIsPickedWhenAllAreEjected() {
+        BalancedClient client = balanced(LoadBalancing.LEAST_CONNECTIONS, 2);
+        for (int i = 0; i < BalancedClient.EJECT_AFTER_FAILURES; i++) {
+            client.endpoints[0].onHandshake(1, new IOException("refused"));
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        for (int i = 0; i < BalancedClient.EJECT_AFTER_FAILURES; i++) {
+            client.endpoints[1].onHandshake(1, new IOException("refused"));
+        }
+        assertSame("Should pick the one back soonest", client.endpoints[0], client.pick());
+    }
+
+    private BalancedClient balanced(LoadBalancing strategy, int count) {
+        List<ClientImpl> endpoints = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            endpoints.add((ClientImpl) clients.client("10.0.0." + (i + 1), 8080));
+        }
+        return new BalancedClient(clients, strategy, endpoints, ticker);
+    }
+
+    private static Endpoint endpointOf(WebsocketClientRequest request) {
+        return (Endpoint) ((ReqImpl) request).observer;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.EmbeddedConnection.Thing;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks that frames arriving in one read are delivered together, split at
+ * the maximum batch size, with replies sent once per batch.
+ *
+ * @author Tim Boudreau
+ */
+public class BatchDeliveryTest {
+
+    @Test
+    public void testFramesFromOneReadAreBatched() throws Throwable {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        try {
+            List<Integer> firstIndices = new ArrayList<>();
+            List<List<Integer>> batches = new ArrayList<>();
+            BatchHandler<Thing> handler = (firstIndex, messages, ctrl) -> {
+                firstIndices.add(firstIndex);
+                List<Integer> values = new ArrayList<>();
+                for (Thing t : messages) {
+                    values.add(t.value);
+                }
+                batches.add(values);
+                return Collections.singletonList("batch " + firstIndex);
+            };
+            EmbeddedConnection conn = EmbeddedConnection.connect(clients,
+                    clients.new BatchFrameCallback<>(Thing.class, 3, handler));
+
+            // One receive is one read cycle
+            conn.receive("{\"value\":0}", "{\"value\":1}", "{\"value\":2}",
+                    "{\"value\":3}", "{\"value\":4}");
+            assertEquals(Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4)), batches);
+            assertEquals(Arrays.asList(0, 3), firstIndices);
+
+            conn.receive("{\"value\":5}");
+            assertEquals(Arrays.asList(5), batches.get(2));
+            assertEquals(Arrays.asList(0, 3, 5), firstIndices);
+
+            assertEquals(Arrays.asList("batch 0", "batch 3", "batch 5"), conn.replies());
+            conn.close();
+        } finally {
+            clients.shutdown(Duration.ofSeconds(1));
+        }
+    }
+
+    @Test
+    public void testBatchedRepliesWaitForRateLimit() throws Throwable {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        try {
+            BatchHandler<Thing> handler = (firstIndex, messages, ctrl) -> {
+                List<String> replies = new ArrayList<>();
+                for (Thing t : messages) {
+                    replies.add("reply " + t.value);
+                }
+                return replies;
+            };
+            ReqImpl req = EmbeddedConnection.request(clients);
+            // One message now, and no more for a very long time
+            req.rateLimit(RateLimit.builder().messagesPerSecond(0.001).build());
+            EmbeddedConnection conn = EmbeddedConnection.connect(req,
+                    clients.new BatchFrameCallback<>(Thing.class, 10, handler));
+            conn.receive("{\"value\":0}", "{\"value\":1}", "{\"value\":2}");
+            assertEquals(Arrays.asList("reply 0"), conn.replies());
+            conn.close();
+        } finally {
+            clients.shutdown(Duration.ofSeconds(1));
+        }
+    }
+}
@@ -40,6 +40,7 @@ import com.mastfrog.util.net.PortFinder;
 import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
 import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
 import io.netty.channel.Channel;
+import io.netty.util.concurrent.Future;
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -197,6 +198,21 @@ public class BlatherTestModule extends AbstractModule {
             return result;
         }
 
+        @Override
+        public MultiplexedConnection multiplex(String path, int initialCredit) {
+            return Multiplexer.start(clients, request(path), initialCredit);
+        }
+
+        @Override
+        public Future<BroadcastResult> broadcast(Object message) {
+            return client.broadcast(message);
+        }
+
+        @Override
+        public int openConnections() {
+            return client.openConnections();
+        }
+
         @Override
         public int getPort() {
             return client.getPort();
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.concurrent.Future;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that a broadcast reaches upgraded connections only, once each.
+ *
+ * @author Tim Boudreau
+ */
+public class BroadcastTest {
+
+    private static final FrameCallback<WebSocketFrame> IDLE = (frame, data, ctrl) -> null;
+
+    @Test
+    public void testOnlyUpgradedConnectionsReceiveBroadcasts() throws Throwable {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        EmbeddedConnection a = EmbeddedConnection.connect(clients, IDLE);
+        EmbeddedConnection b = EmbeddedConnection.connect(clients, IDLE);
+        EmbeddedConnection handshaking = EmbeddedConnection.attach(EmbeddedConnection.request(clients), IDLE, null);
+        ReqImpl unconnected = EmbeddedConnection.request(clients);
+
+        Future<BroadcastResult> f = clients.broadcast("hello",
+                Arrays.asList(a.request, handshaking.request, unconnected, b.request));
+        for (EmbeddedConnection conn : Arrays.asList(a, b, handshaking)) {
+            conn.channel.runPendingTasks();
+        }
+        assertTrue(f.isDone());
+        BroadcastResult result = f.get();
+        assertEquals(2, result.attempted());
+        assertTrue(result.toString(), result.isSuccess());
+        assertEquals(Collections.singletonList("hello"), a.replies());
+        assertEquals(Collections.singletonList("hello"), b.replies());
+        // Nothing but the handshake request
+        StringBuilder sent = new StringBuilder();
+        for (ByteBuf buf; (buf = handshaking.channel.readOutbound()) != null;) {
+            sent.append(buf.toString(StandardCharsets.UTF_8));
+            buf.release();
+        }
+        assertTrue(sent.toString(), sent.toString().startsWith("GET /ws"));
+        assertFalse(sent.toString(), sent.toString().contains("hello"));
+
+        a.close();
+        b.close();
+        handshaking.close();
+    }
+
+    @Test
+    public void testBroadcastWaitsForRateLimit() throws Throwable {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        try {
+            ReqImpl req = EmbeddedConnection.request(clients);
+            // One message now, and no more for a very long time
+            req.rateLimit(RateLimit.builder().messagesPerSecond(0.001).build());
+            EmbeddedConnection conn = EmbeddedConnection.connect(req, IDLE);
+            req.control().send("first");
+
+            Future<BroadcastResult> f = clients.broadcast("hello", Collections.singletonList(req));
+            conn.channel.runPendingTasks();
+            assertEquals(Collections.singletonList("first"), conn.replies());
+            assertFalse(f.isDone());
+
+            conn.close();
+            assertTrue(f.isDone());
+            assertEquals(1, f.get().failed());
+        } finally {
+            clients.shutdown(Duration.ofSeconds(1));
+        }
+    }
+}
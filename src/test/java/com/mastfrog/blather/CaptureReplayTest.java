@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.EmbeddedConnection.Thing;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Records a session over an embedded channel, then replays it through a
+ * handler at recorded and maximum speed.
+ *
+ * @author Tim Boudreau
+ */
+public class CaptureReplayTest {
+
+    private static final long GAP_MILLIS = 60;
+
+    @Test
+    public void testCaptureAndReplay() throws Throwable {
+        Path file = Files.createTempFile("blather-capture", ".frames");
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        try {
+            FrameCallback<WebSocketFrame> echo = (frame, data, ctrl) -> {
+                ctrl.send("ack " + frame.content().readableBytes());
+                return null;
+            };
+            ReqImpl req = EmbeddedConnection.request(clients);
+            req.capture(file, 1024 * 1024);
+            EmbeddedConnection conn = EmbeddedConnection.connect(req, echo);
+            for (int i = 0; i < 3; i++) {
+                conn.receive("{\"value\":" + i + "}");
+            }
+            assertEquals(3, conn.replies().size());
+            conn.close();
+
+            List<Integer> values = new ArrayList<>();
+            SessionReplay.Result result = clients.replay(file).maxSpeed().run(Thing.class, (ix, thing, ctrl) -> {
+                values.add(thing.value);
+                return "got " + ix;
+            });
+            assertEquals(Arrays.asList(0, 1, 2), values);
+            assertEquals(3, result.frames());
+            assertEquals(3, result.replies());
+        } finally {
+            clients.shutdown(Duration.ofSeconds(1));
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testReplayKeepsRecordedTiming() throws Throwable {
+        Path file = Files.createTempFile("blather-capture", ".frames");
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        try {
+            ManualTicker recorded = new ManualTicker();
+            EmbeddedChannel channel = new EmbeddedChannel(new FrameCapture(file, 1024 * 1024, recorded));
+            for (int i = 0; i < 3; i++) {
+                if (i > 0) {
+                    recorded.advance(GAP_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                channel.writeInbound(new TextWebSocketFrame("{\"value\":" + i + "}"));
+                // Outbound frames are recorded but not replayed
+                channel.writeOutbound(new TextWebSocketFrame("ack " + i));
+            }
+            channel.finishAndReleaseAll();
+
+            assertEquals(2 * GAP_MILLIS, sleptReplaying(clients, file, 1));
+            assertEquals(GAP_MILLIS, sleptReplaying(clients, file, 2));
+            assertEquals(0, sleptReplaying(clients, file, 0));
+        } finally {
+            clients.shutdown(Duration.ofSeconds(1));
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testCaptureStopsWhenFull() throws Throwable {
+        Path file = Files.createTempFile("blather-capture", ".frames");
+        try {
+            // Room for one record with a five byte payload
+            EmbeddedChannel channel = new EmbeddedChannel(new FrameCapture(file, 14 + 5));
+            channel.writeInbound(new TextWebSocketFrame("first"));
+            channel.writeInbound(new TextWebSocketFrame("again"));
+            channel.finishAndReleaseAll();
+
+            FrameCapture.Reader reader = FrameCapture.read(file);
+            assertTrue(reader.next());
+            WebSocketFrame frame = reader.frame(UnpooledByteBufAllocator.DEFAULT);
+            assertEquals("first", frame.content().toString(StandardCharsets.UTF_8));
+            frame.release();
+            assertFalse(reader.next());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCaptureLargerThanAnIntCanAddressIsRejected() throws Throwable {
+        Path file = Files.createTempFile("blather-capture", ".frames");
+        try {
+            new FrameCapture(file, FrameCapture.MAX_BYTES + 1);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static long sleptReplaying(WebSocketClientsImpl clients, Path file, double speed) throws Throwable {
+        ManualTicker ticker = new ManualTicker();
+        SessionReplay replay = clients.replay(file).ticker(ticker);
+        if (speed == 0) {
+            replay.maxSpeed();
+        } else {
+            replay.speed(speed);
+        }
+        List<Integer> values = new ArrayList<>();
+        SessionReplay.Result result = replay.run(Thing.class, (ix, thing, ctrl) -> {
+            values.add(thing.value);
+            return null;
+        });
+        assertEquals(Arrays.asList(0, 1, 2), values);
+        assertEquals(3, result.frames());
+        assertEquals(ticker.slept(), result.elapsed().toNanos());
+        return TimeUnit.NANOSECONDS.toMillis(ticker.slept());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.Utf8FrameValidator;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that codec options change the work done on each frame: which
+ * handlers are in the pipeline, and whether outbound frames are masked.
+ *
+ * @author Tim Boudreau
+ */
+public class CodecOptionsTest {
+
+    private static final FrameCallback<WebSocketFrame> IGNORE = (frame, data, ctrl) -> null;
+    private Blather clients;
+    private EmbeddedConnection conn;
+
+    @Before
+    public void setUp() {
+        clients = Blather.create(new ObjectMapper());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (conn != null) {
+            conn.close();
+        }
+        clients.shutdown(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void testDefaultsAddNoValidatorOrAggregator() throws Exception {
+        conn = EmbeddedConnection.connect(clients, IGNORE);
+        ChannelPipeline p = conn.channel.pipeline();
+        assertNull(p.get(Utf8FrameValidator.class));
+        assertNull(p.get(WebSocketFrameAggregator.class));
+        ByteBuf sent = sendText("hello");
+        try {
+            assertTrue("Frames should be masked by default", masked(sent));
+        } finally {
+            sent.release();
+        }
+    }
+
+    @Test
+    public void testValidationAndAggregationAreOptIn() throws Exception {
+        ReqImpl req = EmbeddedConnection.request(clients);
+        req.codecOptions(CodecOptions.builder().validateUtf8(true).maxMessageSize(1024 * 1024).build());
+        conn = EmbeddedConnection.connect(req, IGNORE);
+        ChannelPipeline p = conn.channel.pipeline();
+        assertNotNull(p.get(Utf8FrameValidator.class));
+        assertNotNull(p.get(WebSocketFrameAggregator.class));
+    }
+
+    @Test
+    public void testUnmaskedFramesCarryThePayloadAsIs() throws Exception {
+        clients.codecOptions(CodecOptions.builder().masking(false).build());
+        conn = EmbeddedConnection.connect(clients, IGNORE);
+        ByteBuf sent = sendText("hello");
+        try {
+            assertFalse("Frame should not be masked", masked(sent));
+            // Two byte header, then the payload untouched
+            assertEquals("hello", sent.toString(2, sent.readableBytes() - 2, StandardCharsets.UTF_8));
+        } finally {
+            sent.release();
+        }
+    }
+
+    private ByteBuf sendText(String text) {
+        conn.channel.writeAndFlush(new TextWebSocketFrame(text));
+        ByteBuf result = Unpooled.buffer();
+        for (ByteBuf buf; (buf = conn.channel.readOutbound()) != null;) {
+            result.writeBytes(buf);
+            buf.release();
+        }
+        return result;
+    }
+
+    private static boolean masked(ByteBuf frame) {
+        // The high bit of the second byte of a frame is the mask flag
+        return (frame.getByte(1) & 0x80) != 0;
+    }
+}
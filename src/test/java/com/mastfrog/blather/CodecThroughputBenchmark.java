@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.Utf8FrameValidator;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Measures the cost of masking outbound frames and validating inbound UTF-8
+ * for large text frames, the two per-byte operations CodecOptions can turn
+ * off. Each comparison alternates the two settings over several rounds and
+ * requires a margin between the medians, so one noisy round does not decide
+ * the result. Excluded from the default test run; run it with
+ * <code>mvn test -Pbenchmarks</code>. CodecOptionsTest checks that the
+ * options change which work is done.
+ *
+ * @author Tim Boudreau
+ */
+public class CodecThroughputBenchmark {
+
+    private static final int PAYLOAD = 64 * 1024;
+    private static final int ROUNDS = 5;
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 2000;
+    private static final double MARGIN = 1.1;
+
+    @Test
+    public void testMaskingCost() {
+        ByteBuf payload = payload();
+        try {
+            double[] masked = new double[ROUNDS];
+            double[] unmasked = new double[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                masked[i] = encodeMbPerSecond(payload, true);
+                unmasked[i] = encodeMbPerSecond(payload, false);
+            }
+            double m = median(masked);
+            double u = median(unmasked);
+            System.out.printf("Encode %dKb text frames: masked %.0f MB/s, unmasked %.0f MB/s%n",
+                    PAYLOAD / 1024, m, u);
+            // Unmasked frames reuse the payload buffer; masked ones are
+            // copied byte by byte
+            assertTrue("Masked " + m + " MB/s, unmasked " + u + " MB/s", u > m * MARGIN);
+        } finally {
+            payload.release();
+        }
+    }
+
+    @Test
+    public void testUtf8ValidationCost() {
+        ByteBuf encoded = encode(payload());
+        try {
+            double[] validated = new double[ROUNDS];
+            double[] unvalidated = new double[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                validated[i] = decodeMbPerSecond(encoded, true);
+                unvalidated[i] = decodeMbPerSecond(encoded, false);
+            }
+            double v = median(validated);
+            double u = median(unvalidated);
+            System.out.printf("Decode %dKb text frames: validated %.0f MB/s, unvalidated %.0f MB/s%n",
+                    PAYLOAD / 1024, v, u);
+            assertTrue("Validated " + v + " MB/s, unvalidated " + u + " MB/s", u > v * MARGIN);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] copy = values.clone();
+        Arrays.sort(copy);
+        return copy[copy.length / 2];
+    }
+
+    private static ByteBuf payload() {
+        // Mostly ASCII with some multi-byte characters, like typical JSON
+        char[] chars = new char[PAYLOAD / 2];
+        Arrays.fill(chars, 'x');
+        for (int i = 0; i < chars.length; i += 64) {
+            chars[i] = '\u00e9';
+        }
+        ByteBuf result = Unpooled.copiedBuffer(chars, StandardCharsets.UTF_8);
+        assertTrue(result.readableBytes() <= PAYLOAD);
+        return result;
+    }
+
+    private static ByteBuf encode(ByteBuf payload) {
+        EmbeddedChannel channel = new EmbeddedChannel(new WebSocket13FrameEncoder(false));
+        channel.writeOutbound(new TextWebSocketFrame(payload));
+        ByteBuf result = Unpooled.buffer();
+        for (ByteBuf buf; (buf = channel.readOutbound()) != null;) {
+            result.writeBytes(buf);
+            buf.release();
+        }
+        channel.finishAndReleaseAll();
+        return result;
+    }
+
+    private static double encodeMbPerSecond(ByteBuf payload, boolean mask) {
+        EmbeddedChannel channel = new EmbeddedChannel(new WebSocket13FrameEncoder(mask));
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                encodeOnce(channel, payload);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                encodeOnce(channel, payload);
+            }
+            return mbPerSecond(payload.readableBytes(), System.nanoTime() - start);
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    private static void encodeOnce(EmbeddedChannel channel, ByteBuf payload) {
+        channel.writeOutbound(new TextWebSocketFrame(payload.retainedDuplicate()));
+        for (ByteBuf buf; (buf = channel.readOutbound()) != null;) {
+            buf.release();
+        }
+    }
+
+    private static double decodeMbPerSecond(ByteBuf encoded, boolean validate) {
+        ChannelHandler decoder = new WebSocket13FrameDecoder(false, true, PAYLOAD * 2);
+        EmbeddedChannel channel = validate
+                ? new EmbeddedChannel(decoder, new Utf8FrameValidator())
+                : new EmbeddedChannel(decoder);
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                decodeOnce(channel, encoded);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                decodeOnce(channel, encoded);
+            }
+            return mbPerSecond(encoded.readableBytes(), System.nanoTime() - start);
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    private static void decodeOnce(EmbeddedChannel channel, ByteBuf encoded) {
+        channel.writeInbound(encoded.retainedDuplicate());
+        TextWebSocketFrame frame = channel.readInbound();
+        assertEquals(encoded.readableBytes() - 4, frame.content().readableBytes());
+        frame.release();
+    }
+
+    private static double mbPerSecond(int bytes, long nanos) {
+        return ((double) bytes * ITERATIONS / (1024 * 1024)) / (nanos / 1_000_000_000D);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that a consumer which falls behind only sees the latest message
+ * for each key.
+ *
+ * @author Tim Boudreau
+ */
+public class ConflationTest {
+
+    @Test
+    public void testOnlyLatestValuePerKeyIsDelivered() throws Throwable {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        // An executor which only runs tasks when told to, standing in for a
+        // consumer which has fallen behind
+        List<Runnable> tasks = new ArrayList<>();
+        try {
+            Map<String, Integer> seen = new TreeMap<>();
+            int[] calls = new int[1];
+            WebsocketMessageHandler<Quote> handler = (ix, quote, ctrl) -> {
+                calls[0]++;
+                seen.put(quote.symbol, quote.price);
+                return null;
+            };
+            EmbeddedConnection conn = EmbeddedConnection.connect(clients,
+                    clients.new ConflatingFrameCallback<>(Quote.class, q -> q.symbol, tasks::add, handler));
+
+            String[] quotes = new String[100];
+            for (int i = 0; i < quotes.length; i++) {
+                quotes[i] = "{\"symbol\":\"" + (i % 2 == 0 ? "A" : "B") + "\",\"price\":" + i + "}";
+            }
+            conn.receive(quotes);
+            assertEquals("Drain should be scheduled once", 1, tasks.size());
+            assertEquals(0, calls[0]);
+
+            tasks.remove(0).run();
+            assertEquals(2, calls[0]);
+            Map<String, Integer> expected = new TreeMap<>();
+            expected.put("A", 98);
+            expected.put("B", 99);
+            assertEquals(expected, seen);
+
+            conn.receive("{\"symbol\":\"C\",\"price\":1}", "{\"symbol\":\"A\",\"price\":100}");
+            assertEquals(1, tasks.size());
+            tasks.remove(0).run();
+            assertEquals(4, calls[0]);
+            expected.put("A", 100);
+            expected.put("C", 1);
+            assertEquals(expected, seen);
+            assertTrue(tasks.isEmpty());
+            conn.close();
+        } finally {
+            clients.shutdown(Duration.ofSeconds(1));
+        }
+    }
+
+    public static final class Quote {
+
+        public String symbol;
+        public int price;
+
+        @Override
+        public String toString() {
+            return symbol + "=" + price;
+        }
+    }
+}
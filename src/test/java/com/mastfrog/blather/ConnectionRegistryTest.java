@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks connection counting and closing everything in a registry.
+ *
+ * @author Tim Boudreau
+ */
+public class ConnectionRegistryTest {
+
+    @Test
+    public void testCountsPropagateToParent() {
+        ConnectionRegistry parent = new ConnectionRegistry(null);
+        ConnectionRegistry a = new ConnectionRegistry(parent);
+        ConnectionRegistry b = new ConnectionRegistry(parent);
+        Conn one = new Conn(null);
+        Conn two = new Conn(null);
+        a.add(one);
+        a.add(one);
+        b.add(two);
+        assertEquals(1, a.size());
+        assertEquals(1, b.size());
+        assertEquals(2, parent.size());
+
+        a.remove(one);
+        a.remove(one);
+        assertEquals(0, a.size());
+        assertEquals(1, parent.size());
+        assertTrue(parent.upgraded(new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    public void testCloseAllForcibly() throws Exception {
+        ConnectionRegistry registry = new ConnectionRegistry(null);
+        EmbeddedChannel first = new EmbeddedChannel();
+        EmbeddedChannel second = new EmbeddedChannel();
+        Conn unconnected = new Conn(null);
+        registry.add(new Conn(first));
+        registry.add(new Conn(second));
+        registry.add(unconnected);
+
+        ConnectionRegistry.CloseAll closing = registry.closeAll(false, first.eventLoop(), 1, TimeUnit.SECONDS);
+        assertTrue("Attempt should be abandoned", unconnected.closed.get());
+        // Each loop is handed one task to close its channels
+        assertTrue(first.isOpen());
+        first.runPendingTasks();
+        second.runPendingTasks();
+        assertFalse(first.isOpen());
+        assertFalse(second.isOpen());
+        assertTrue(closing.future().isSuccess());
+        assertEquals(2, closing.total());
+        assertEquals(2, closing.forcibly());
+        assertEquals(0, closing.cleanly());
+    }
+
+    @Test
+    public void testGracefulCloseForcesStragglersAtDeadline() throws Exception {
+        ConnectionRegistry registry = new ConnectionRegistry(null);
+        EmbeddedChannel polite = new EmbeddedChannel();
+        EmbeddedChannel silent = new EmbeddedChannel();
+        EmbeddedChannel timer = new EmbeddedChannel();
+        registry.add(new Conn(polite));
+        registry.add(new Conn(silent));
+
+        ConnectionRegistry.CloseAll closing = registry.closeAll(true, timer.eventLoop(), 0, TimeUnit.SECONDS);
+        polite.runPendingTasks();
+        silent.runPendingTasks();
+        assertCloseFrame(polite.readOutbound());
+        assertCloseFrame(silent.readOutbound());
+        // The server acknowledges one of them
+        polite.close();
+        assertFalse(closing.future().isDone());
+
+        timer.runPendingTasks();
+        assertFalse(silent.isOpen());
+        assertTrue(closing.future().isSuccess());
+        assertEquals(1, closing.cleanly());
+        assertEquals(1, closing.forcibly());
+        timer.finishAndReleaseAll();
+    }
+
+    private static void assertCloseFrame(Object msg) {
+        assertTrue(String.valueOf(msg), msg instanceof CloseWebSocketFrame);
+        ((CloseWebSocketFrame) msg).release();
+    }
+
+    static final class Conn implements ConnectionRegistry.Connection {
+
+        private final Channel channel;
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        Conn(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public Channel channel() {
+            return channel;
+        }
+
+        @Override
+        public ChannelControl control() {
+            return null;
+        }
+
+        @Override
+        public boolean markClosed() {
+            return closed.compareAndSet(false, true);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.EmbeddedConnection.Thing;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Measures bytes allocated per inbound frame on the dispatch path, using the
+ * JVM's per-thread allocation counters.
+ *
+ * @author Tim Boudreau
+ */
+public class DispatchAllocationTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+    // Jackson creates a parser and deserialization context for each read;
+    // the frame, target and reader are not recreated, which keeps this small
+    private static final double JSON_BUDGET_BYTES = 2048;
+    private final List<Throwable> thrown = new ArrayList<>();
+
+    @Test
+    public void testRawFrameDispatchDoesNotAllocate() throws Throwable {
+        FrameCallback<WebSocketFrame> cb = (frame, data, ctrl) -> null;
+        double perFrame = bytesPerFrame(cb, "{\"value\":23}");
+        assertTrue("Dispatching a frame allocated " + perFrame + " bytes", perFrame < 1D);
+    }
+
+    @Test
+    public void testReusableDecodeTarget() throws Throwable {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        Thing target = new Thing();
+        int[] count = new int[1];
+        FrameCallback<Thing> fc = (frame, data, ctrl) -> {
+            assertSame(target, data);
+            assertEquals(23, data.value);
+            count[0]++;
+            return null;
+        };
+        FrameCallback<WebSocketFrame> cb = clients.new JsonFrameCallback<>(fc, new ObjectMapper(), Thing.class, () -> target);
+        double perFrame = bytesPerFrame(cb, "{\"value\":23}");
+        assertEquals(WARMUP + ITERATIONS, count[0]);
+        assertTrue("Decoding a frame into a reused target allocated " + perFrame + " bytes",
+                perFrame < JSON_BUDGET_BYTES);
+    }
+
+    private double bytesPerFrame(FrameCallback<WebSocketFrame> cb, String payload) throws Throwable {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        WebSocketClientHandler handler = new WebSocketClientHandler(cb,
+                WebSocketClientHandshakerFactory.newHandshaker(URI.create("ws://localhost/ws"),
+                        WebSocketVersion.V13, null, true, new DefaultHttpHeaders()),
+                (c, t) -> null, o -> null, new Collector());
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpClientCodec(), handler);
+        try {
+            ChannelHandlerContext ctx = channel.pipeline().context(handler);
+            TextWebSocketFrame frame = new TextWebSocketFrame(Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8));
+            for (int i = 0; i < WARMUP; i++) {
+                frame.content().readerIndex(0);
+                handler.onFrame(ctx, frame);
+            }
+            long tid = Thread.currentThread().getId();
+            long before = mx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < ITERATIONS; i++) {
+                frame.content().readerIndex(0);
+                handler.onFrame(ctx, frame);
+            }
+            long after = mx.getThreadAllocatedBytes(tid);
+            frame.release();
+            if (!thrown.isEmpty()) {
+                throw thrown.get(0);
+            }
+            return (after - before) / (double) ITERATIONS;
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    final class Collector implements ExceptionCollector {
+
+        @Override
+        public void rethrow() throws Throwable {
+            if (!thrown.isEmpty()) {
+                throw thrown.get(0);
+            }
+        }
+
+        @Override
+        public void onException(Throwable t, ChannelHandlerContext ctx) {
+            thrown.add(t);
+        }
+    }
+}
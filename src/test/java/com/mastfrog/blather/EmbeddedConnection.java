@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import com.mastfrog.url.URL;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A client connection over an EmbeddedChannel, with the websocket handshake
+ * completed by hand, so tests can drive the real pipeline a request builds
+ * without a server. Frames written to it are encoded the way a server would
+ * send them, and replies are decoded the way a server would read them.
+ *
+ * @author Tim Boudreau
+ */
+final class EmbeddedConnection {
+
+    private static final Pattern KEY = Pattern.compile("Sec-WebSocket-Key: (\\S+)", Pattern.CASE_INSENSITIVE);
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    final ReqImpl request;
+    final EmbeddedChannel channel;
+    final WebSocketClientHandler handler;
+
+    private EmbeddedConnection(ReqImpl request, EmbeddedChannel channel, WebSocketClientHandler handler) {
+        this.request = request;
+        this.channel = channel;
+        this.handler = handler;
+    }
+
+    /**
+     * Create a request for ws://127.0.0.1:8080/ws which has not been
+     * initiated, so tests can configure it before connecting.
+     *
+     * @param clients The clients
+     * @return A request
+     */
+    static ReqImpl request(Blather clients) {
+        return (ReqImpl) clients.client("127.0.0.1", 8080).request("/ws");
+    }
+
+    static EmbeddedConnection connect(Blather clients, FrameCallback<WebSocketFrame> callback) throws Exception {
+        return connect(request(clients), callback, null);
+    }
+
+    static EmbeddedConnection connect(ReqImpl request, FrameCallback<WebSocketFrame> callback) throws Exception {
+        return connect(request, callback, null);
+    }
+
+    /**
+     * Attach a request's pipeline to a new embedded channel and complete
+     * the handshake.
+     *
+     * @param request The request
+     * @param callback The callback frames are dispatched to
+     * @param alloc The allocator for the channel, or null for the default
+     * @return A connection
+     * @throws Exception If the handshake fails
+     */
+    static EmbeddedConnection connect(ReqImpl request, FrameCallback<WebSocketFrame> callback,
+            ByteBufAllocator alloc) throws Exception {
+        return attach(request, callback, alloc).handshake();
+    }
+
+    /**
+     * Attach a request's pipeline to a new embedded channel, leaving the
+     * handshake request unanswered.
+     *
+     * @param request The request
+     * @param callback The callback frames are dispatched to
+     * @param alloc The allocator for the channel, or null for the default
+     * @return A connection
+     * @throws URISyntaxException If the request's URL is invalid
+     */
+    static EmbeddedConnection attach(ReqImpl request, FrameCallback<WebSocketFrame> callback,
+            ByteBufAllocator alloc) throws URISyntaxException {
+        URI uri = request.uri();
+        URL url = URL.parse(uri.toString());
+        EmbeddedChannel channel = new EmbeddedChannel();
+        if (alloc != null) {
+            channel.config().setAllocator(alloc);
+        }
+        WebSocketClientHandler handler = request.newHandler(callback, url, uri, System.nanoTime());
+        request.attach(channel, handler, null, url);
+        return new EmbeddedConnection(request, channel, handler);
+    }
+
+    /**
+     * Answer the handshake request the client sent.
+     *
+     * @return this
+     * @throws Exception If the handshake fails
+     */
+    EmbeddedConnection handshake() throws Exception {
+        handshake(channel);
+        assertTrue("Handshake failed: " + handler.handshakeFuture().cause(),
+                handler.handshakeFuture().isSuccess());
+        return this;
+    }
+
+    private static void handshake(EmbeddedChannel channel) throws Exception {
+        StringBuilder request = new StringBuilder();
+        for (ByteBuf buf; (buf = channel.readOutbound()) != null;) {
+            request.append(buf.toString(StandardCharsets.US_ASCII));
+            buf.release();
+        }
+        Matcher m = KEY.matcher(request);
+        assertTrue("No key in " + request, m.find());
+        byte[] digest = MessageDigest.getInstance("SHA-1")
+                .digest((m.group(1) + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(digest) + "\r\n\r\n";
+        ByteBuf buf = channel.alloc().buffer();
+        buf.writeCharSequence(response, StandardCharsets.US_ASCII);
+        channel.writeInbound(buf);
+    }
+
+    /**
+     * Deliver text frames from the server, all in one read.
+     *
+     * @param texts The frame payloads
+     * @return this
+     */
+    EmbeddedConnection receive(String... texts) {
+        Object[] frames = new Object[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            frames[i] = serverFrame(new TextWebSocketFrame(texts[i]), channel.alloc());
+        }
+        channel.writeInbound(frames);
+        return this;
+    }
+
+    /**
+     * Deliver frames from the server, all in one read.
+     *
+     * @param frames The frames, which are released
+     * @return this
+     */
+    EmbeddedConnection receive(WebSocketFrame... frames) {
+        Object[] encoded = new Object[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            encoded[i] = serverFrame(frames[i], channel.alloc());
+        }
+        channel.writeInbound(encoded);
+        return this;
+    }
+
+    /**
+     * Encode a frame as a server sends it - unmasked.
+     *
+     * @param frame The frame, which is released
+     * @param alloc The allocator for the result
+     * @return The encoded bytes
+     */
+    static ByteBuf serverFrame(WebSocketFrame frame, ByteBufAllocator alloc) {
+        EmbeddedChannel server = new EmbeddedChannel(new WebSocket13FrameEncoder(false));
+        server.config().setAllocator(alloc);
+        server.writeOutbound(frame);
+        ByteBuf result = alloc.buffer();
+        for (ByteBuf buf; (buf = server.readOutbound()) != null;) {
+            result.writeBytes(buf);
+            buf.release();
+        }
+        server.finishAndReleaseAll();
+        return result;
+    }
+
+    /**
+     * Decode the text of every frame the client has written since the last
+     * call, as the server would see it.
+     *
+     * @return The payloads of the frames written
+     */
+    List<String> replies() {
+        List<String> result = new ArrayList<>();
+        for (WebSocketFrame frame : sent()) {
+            result.add(frame.content().toString(StandardCharsets.UTF_8));
+            frame.release();
+        }
+        return result;
+    }
+
+    /**
+     * Decode every frame the client has written since the last call, as the
+     * server would see it.
+     *
+     * @return The frames written, which the caller must release
+     */
+    List<WebSocketFrame> sent() {
+        // Client frames are masked; let a server-side decoder unmask them
+        EmbeddedChannel server = new EmbeddedChannel(new WebSocket13FrameDecoder(true, false, 65536));
+        for (ByteBuf buf; (buf = channel.readOutbound()) != null;) {
+            server.writeInbound(buf);
+        }
+        List<WebSocketFrame> result = new ArrayList<>();
+        for (WebSocketFrame frame; (frame = server.readInbound()) != null;) {
+            result.add(frame);
+        }
+        server.finishAndReleaseAll();
+        return result;
+    }
+
+    void close() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * A message type for tests.
+     */
+    public static final class Thing {
+
+        public int value;
+
+        public Thing() {
+        }
+
+        Thing(int value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks that replies and sends made from the event loop are serialized on
+ * the encoder executor, in order.
+ *
+ * @author Tim Boudreau
+ */
+public class EncodeOnTest {
+
+    private static final String ENCODER_THREAD = "blather-test-encoder";
+
+    @Test
+    public void testRepliesAreEncodedOnEncoder() throws Throwable {
+        ExecutorService encoder = Executors.newSingleThreadExecutor(r -> new Thread(r, ENCODER_THREAD));
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        clients.encodeOn(encoder);
+        try {
+            FrameCallback<Stamped> fc = (frame, data, ctrl) -> {
+                ctrl.send(new Stamped(data.value + 1));
+                return new Stamped(data.value + 2);
+            };
+            EmbeddedConnection conn = EmbeddedConnection.connect(clients,
+                    clients.callbackFor(fc, Stamped.class));
+            conn.receive("{\"value\":1}");
+            // Single threaded, so once this runs the replies have been written
+            encoder.submit(() -> {
+            }).get(10, TimeUnit.SECONDS);
+
+            List<String> replies = conn.replies();
+            assertEquals(2, replies.size());
+            assertEquals("{\"value\":2,\"thread\":\"" + ENCODER_THREAD + "\"}", replies.get(0));
+            assertEquals("{\"value\":3,\"thread\":\"" + ENCODER_THREAD + "\"}", replies.get(1));
+            conn.close();
+        } finally {
+            clients.shutdown(Duration.ofSeconds(1));
+            encoder.shutdown();
+        }
+    }
+
+    /**
+     * Records the thread it was serialized on.
+     */
+    public static final class Stamped {
+
+        public int value;
+
+        public Stamped() {
+        }
+
+        Stamped(int value) {
+            this.value = value;
+        }
+
+        public String getThread() {
+            return Thread.currentThread().getName();
+        }
+
+        public void setThread(String ignored) {
+            // only here so Jackson can read what it writes
+        }
+    }
+}
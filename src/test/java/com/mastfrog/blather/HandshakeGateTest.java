@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the order connection attempts are admitted in, and that slots are
+ * given back on release, cancel and timeout.
+ *
+ * @author Tim Boudreau
+ */
+public class HandshakeGateTest {
+
+    private final ManualTicker ticker = new ManualTicker();
+    private final HandshakeGate gate = new HandshakeGate(null, ticker);
+    private final List<String> started = new ArrayList<>();
+
+    @Test
+    public void testAdmitsInOrder() {
+        gate.limit(1, 10);
+        HandshakeGate.Ticket a = submit("host", "a");
+        HandshakeGate.Ticket b = submit("host", "b");
+        submit("other", "c");
+        assertEquals(Arrays.asList("a"), started);
+        assertEquals(2, gate.queued());
+
+        a.release();
+        assertEquals(Arrays.asList("a", "b"), started);
+        b.release();
+        assertEquals(Arrays.asList("a", "b", "c"), started);
+        assertEquals(0, gate.queued());
+        assertEquals(3, gate.admitted());
+    }
+
+    @Test
+    public void testHostAtLimitDoesNotBlockOtherHosts() {
+        gate.limit(3, 1);
+        HandshakeGate.Ticket a = submit("host", "a");
+        submit("host", "b");
+        submit("other", "c");
+        assertEquals(Arrays.asList("a", "c"), started);
+        assertEquals(1, gate.queued());
+        assertEquals(2, gate.inProgress());
+
+        a.release();
+        assertEquals(Arrays.asList("a", "c", "b"), started);
+    }
+
+    @Test
+    public void testCancelAndRelease() {
+        gate.limit(1, 1);
+        HandshakeGate.Ticket a = submit("host", "a");
+        HandshakeGate.Ticket b = submit("host", "b");
+        assertFalse("Already admitted", a.cancel());
+        assertTrue(b.cancel());
+        assertFalse(b.cancel());
+        assertEquals(0, gate.queued());
+
+        a.release();
+        a.release();
+        assertEquals(Arrays.asList("a"), started);
+        assertEquals(0, gate.inProgress());
+
+        // Releasing a queued ticket takes it out of line
+        HandshakeGate.Ticket c = submit("host", "c");
+        HandshakeGate.Ticket d = submit("host", "d");
+        d.release();
+        c.release();
+        assertEquals(Arrays.asList("a", "c"), started);
+        assertEquals(0, gate.queued());
+        assertEquals(0, gate.inProgress());
+    }
+
+    @Test
+    public void testTimedOutAttemptGivesUpItsSlot() {
+        gate.timeout(5000);
+        gate.limit(1, 1);
+        HandshakeGate.Ticket a = submit("host", "a");
+        submit("host", "b");
+
+        ticker.advance(4, TimeUnit.SECONDS);
+        gate.expire();
+        assertEquals(Arrays.asList("a"), started);
+
+        ticker.advance(2, TimeUnit.SECONDS);
+        gate.expire();
+        assertEquals(Arrays.asList("a", "b"), started);
+        assertEquals(1, gate.inProgress());
+
+        // The late release of the timed out attempt changes nothing
+        a.release();
+        assertEquals(1, gate.inProgress());
+        assertEquals(Arrays.asList("a", "b"), started);
+    }
+
+    @Test
+    public void testUnlimitedUntilLimitSet() {
+        assertFalse(gate.limited());
+        gate.limit(Integer.MAX_VALUE, 2);
+        assertTrue(gate.limited());
+    }
+
+    @Test
+    public void testAdmittedAttemptRunsOnItsOwnExecutor() {
+        gate.limit(1, 1);
+        List<String> ranOn = new ArrayList<>();
+        HandshakeGate.Ticket a = gate.ticket("host", task -> {
+            ranOn.add("a");
+            task.run();
+        }, () -> started.add("a"));
+        HandshakeGate.Ticket b = gate.ticket("host", task -> {
+            ranOn.add("b");
+            task.run();
+        }, () -> started.add("b"));
+        gate.submit(a);
+        gate.submit(b);
+        // Released by a's handshake, but b still runs on b's executor
+        a.release();
+        assertEquals(Arrays.asList("a", "b"), ranOn);
+        assertEquals(Arrays.asList("a", "b"), started);
+    }
+
+    @Test
+    public void testOneExpiryTimerForManyAttempts() {
+        ScheduledThreadPoolExecutor timers = new ScheduledThreadPoolExecutor(1);
+        try {
+            HandshakeGate timed = new HandshakeGate(timers, ticker);
+            timed.limit(10, 10);
+            for (int i = 0; i < 5; i++) {
+                timed.submit(timed.ticket("host", Runnable::run, () -> {
+                }));
+            }
+            assertEquals(5, timed.inProgress());
+            assertEquals(1, timers.getQueue().size());
+        } finally {
+            timers.shutdownNow();
+        }
+    }
+
+    private HandshakeGate.Ticket submit(String host, String name) {
+        // Runs admitted attempts inline, so the test sees them at once
+        HandshakeGate.Ticket result = gate.ticket(host, Runnable::run, () -> started.add(name));
+        gate.submit(result);
+        return result;
+    }
+}
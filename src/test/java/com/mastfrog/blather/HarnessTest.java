@@ -31,7 +31,11 @@ import com.mastfrog.util.collections.StringObjectMap;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -84,4 +88,24 @@ public class HarnessTest {
         ctrl.close();
         return null;
     }
+
+    @Test(timeout = 20000)
+    public void testMultiplex(WebsocketHostClient client) throws Throwable {
+        try (MultiplexedConnection conn = client.multiplex("/mux", 4)) {
+            AtomicReference<String> received = new AtomicReference<>();
+            CountDownLatch latch = new CountDownLatch(1);
+            LogicalStream stream = conn.open(1, String.class, (ix, data, ctrl) -> {
+                received.set(data);
+                latch.countDown();
+                return null;
+            });
+            // The server echoes the credit we grant it back to us
+            while (stream.sendCredit() == 0) {
+                Thread.sleep(10);
+            }
+            stream.send("hello");
+            assertTrue("No echo of stream data", latch.await(10, TimeUnit.SECONDS));
+            assertEquals("hello", received.get());
+        }
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Checks host name caching and the ordering of addresses for connection
+ * racing.
+ *
+ * @author Tim Boudreau
+ */
+public class HostResolverTest {
+
+    private final ManualTicker ticker = new ManualTicker();
+    private final Map<String, Integer> lookups = new HashMap<>();
+    private final HostResolver resolver = new HostResolver(ticker, host -> {
+        lookups.merge(host, 1, Integer::sum);
+        return new InetAddress[]{v4(1), v6(1), v4(2)};
+    });
+
+    @Test
+    public void testCachesForTtl() throws UnknownHostException {
+        List<InetAddress> first = resolver.resolve("feed");
+        ticker.advance(HostResolver.DEFAULT_TTL_MILLIS - 1, TimeUnit.MILLISECONDS);
+        assertSame(first, resolver.resolve("feed"));
+        assertEquals(1, (int) lookups.get("feed"));
+
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        resolver.resolve("feed");
+        assertEquals(2, (int) lookups.get("feed"));
+
+        // Forgotten after a failed connection, so the next attempt looks again
+        resolver.forget("feed");
+        resolver.resolve("feed");
+        assertEquals(3, (int) lookups.get("feed"));
+    }
+
+    @Test
+    public void testZeroTtlDisablesCaching() throws UnknownHostException {
+        resolver.resolve("feed");
+        resolver.ttl(0);
+        resolver.resolve("feed");
+        resolver.resolve("feed");
+        assertEquals(3, (int) lookups.get("feed"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeTtlIsRejected() {
+        resolver.ttl(-1);
+    }
+
+    @Test
+    public void testFamiliesAlternate() throws UnknownHostException {
+        assertEquals(Arrays.asList(v4(1), v6(1), v4(2)), resolver.resolve("feed"));
+        assertEquals(Arrays.asList(v6(1), v4(1), v6(2), v4(2), v4(3)),
+                HostResolver.interleave(new InetAddress[]{v6(1), v6(2), v4(1), v4(2), v4(3)}));
+        assertEquals(Arrays.asList(v4(1), v6(1), v4(2), v6(2)),
+                HostResolver.interleave(new InetAddress[]{v4(1), v4(2), v6(1), v6(2)}));
+        assertEquals(Arrays.asList(v4(1)), HostResolver.interleave(new InetAddress[]{v4(1)}));
+    }
+
+    private static InetAddress v4(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+    }
+
+    private static InetAddress v6(int last) throws UnknownHostException {
+        byte[] addr = new byte[16];
+        addr[0] = (byte) 0xfd;
+        addr[15] = (byte) last;
+        return InetAddress.getByAddress(addr);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Measures the heap retained by each idle, upgraded connection, by
+ * completing the handshake for many requests over embedded channels and
+ * comparing heap use against the same number of bare embedded channels.
+ * Connections are created in low-footprint mode.
+ *
+ * @author Tim Boudreau
+ */
+public class IdleFootprintTest {
+
+    private static final int CONNECTIONS = 2000;
+    // Generous, so the test is stable across JVMs and collectors; a
+    // low-footprint connection should need a fraction of this
+    private static final long BUDGET_BYTES = 16 * 1024;
+    private static final FrameCallback<WebSocketFrame> IDLE = (frame, data, ctrl) -> null;
+
+    @Test
+    public void testRetainedHeapPerIdleConnection() throws Throwable {
+        long retained = bytesPerConnection();
+        assertTrue("Idle connection retains " + retained + " bytes", retained < BUDGET_BYTES);
+    }
+
+    private long bytesPerConnection() throws Throwable {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        clients.lowFootprint(true);
+        List<EmbeddedChannel> bare = new ArrayList<>(CONNECTIONS);
+        List<EmbeddedChannel> connected = new ArrayList<>(CONNECTIONS);
+        try {
+            long start = usedHeap();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                bare.add(new EmbeddedChannel());
+            }
+            long afterBare = usedHeap();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                connected.add(EmbeddedConnection.connect(clients, IDLE).channel);
+            }
+            long afterConnected = usedHeap();
+            return ((afterConnected - afterBare) - (afterBare - start)) / CONNECTIONS;
+        } finally {
+            for (EmbeddedChannel ch : bare) {
+                ch.finishAndReleaseAll();
+            }
+            for (EmbeddedChannel ch : connected) {
+                ch.finishAndReleaseAll();
+            }
+            clients.shutdown(Duration.ofSeconds(1));
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
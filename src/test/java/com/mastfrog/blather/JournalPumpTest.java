@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a request's journal is sent when the connection comes up, is
+ * held while the socket is not writable, and that whatever a closed
+ * connection did not send is sent by the next request using the file.
+ *
+ * @author Tim Boudreau
+ */
+public class JournalPumpTest {
+
+    private static final FrameCallback<WebSocketFrame> IGNORE = (frame, data, ctrl) -> null;
+    private WebSocketClientsImpl clients;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        file = Files.createTempFile("blather-journal", ".ring");
+        Files.delete(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        clients.shutdown(Duration.ofSeconds(1));
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testQueuedMessagesAreSentOnConnect() throws Exception {
+        ReqImpl request = journaled();
+        request.send("one");
+        request.send("two");
+        EmbeddedConnection conn = EmbeddedConnection.connect(request, IGNORE);
+        assertEquals(Arrays.asList("one", "two"), conn.replies());
+
+        request.send("three");
+        conn.channel.runPendingTasks();
+        assertEquals(Arrays.asList("three"), conn.replies());
+        conn.close();
+    }
+
+    @Test
+    public void testSendingResumesWhenWritable() throws Exception {
+        ReqImpl request = journaled();
+        request.send("one");
+        EmbeddedConnection conn = EmbeddedConnection.attach(request, IGNORE, null);
+        writable(conn, false);
+        conn.handshake();
+        request.send("two");
+        conn.channel.runPendingTasks();
+        assertEquals(Collections.emptyList(), conn.replies());
+
+        writable(conn, true);
+        assertEquals(Arrays.asList("one", "two"), conn.replies());
+        conn.close();
+    }
+
+    @Test
+    public void testUnsentMessagesReplayOnNextConnection() throws Exception {
+        ReqImpl first = journaled();
+        first.send("sent");
+        EmbeddedConnection conn = EmbeddedConnection.connect(first, IGNORE);
+        assertEquals(Arrays.asList("sent"), conn.replies());
+        writable(conn, false);
+        first.send("held");
+        conn.channel.runPendingTasks();
+        assertEquals(Collections.emptyList(), conn.replies());
+        conn.close();
+
+        ReqImpl second = journaled();
+        conn = EmbeddedConnection.connect(second, IGNORE);
+        assertEquals(Arrays.asList("held"), conn.replies());
+        conn.close();
+    }
+
+    private ReqImpl journaled() throws IOException {
+        ReqImpl result = EmbeddedConnection.request(clients);
+        result.journal(file, 4096);
+        return result;
+    }
+
+    private static void writable(EmbeddedConnection conn, boolean writable) {
+        conn.channel.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+        assertEquals(writable, conn.channel.isWritable());
+        conn.channel.runPendingTasks();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.EmbeddedConnection.Thing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.ResourceLeakDetector;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pushes many frames through each inbound and reply path with paranoid leak
+ * detection on, using a dedicated pooled allocator with thread caches
+ * disabled, so every buffer which is not released shows up as an active
+ * allocation in the pool's metrics. Set the system property
+ * <code>blather.soak.frames</code> to run longer.
+ *
+ * @author Tim Boudreau
+ */
+public class LeakSoakTest {
+
+    private static final int FRAMES = Integer.getInteger("blather.soak.frames", 20000);
+    private ResourceLeakDetector.Level oldLevel;
+    private PooledByteBufAllocator alloc;
+    private WebSocketClientsImpl clients;
+
+    @Before
+    public void setUp() {
+        oldLevel = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+        alloc = new PooledByteBufAllocator(true, 1, 1, 8192, 11, 0, 0, 0);
+        clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        clients.shutdown(Duration.ofSeconds(1));
+        ResourceLeakDetector.setLevel(oldLevel);
+    }
+
+    @Test
+    public void testRawEcho() throws Throwable {
+        soak((frame, data, ctrl) -> frame, false, 1);
+    }
+
+    @Test
+    public void testRawNoReply() throws Throwable {
+        soak((frame, data, ctrl) -> null, true, 0);
+    }
+
+    @Test
+    public void testStringReplies() throws Throwable {
+        FrameCallback<String> fc = (frame, data, ctrl) -> "re: " + data;
+        soak(clients.callbackFor(fc, String.class), false, 1);
+        soak(clients.new StringFrameCallback(fc), false, 1);
+    }
+
+    @Test
+    public void testJsonReplies() throws Throwable {
+        FrameCallback<Thing> fc = (frame, data, ctrl) -> {
+            data.value++;
+            return data;
+        };
+        soak(clients.callbackFor(fc, Thing.class), true, 1);
+    }
+
+    @Test
+    public void testSendFromControl() throws Throwable {
+        FrameCallback<Thing> fc = (frame, data, ctrl) -> {
+            ctrl.send(data);
+            ctrl.send("Got " + data.value);
+            return null;
+        };
+        soak(clients.callbackFor(fc, Thing.class), true, 2);
+    }
+
+    @Test
+    public void testFailedEncodingReleases() throws Throwable {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setAllocator(alloc);
+        for (int i = 0; i < FRAMES; i++) {
+            try {
+                // No serializer for a bare Object - Jackson fails after the
+                // buffer has been allocated
+                clients.toWebSocketFrame(new Object(), channel);
+                fail("Should not have been able to encode");
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+        channel.finishAndReleaseAll();
+        assertNoActiveAllocations("failed encoding");
+    }
+
+    private void soak(FrameCallback<WebSocketFrame> cb, boolean binary, int repliesPerFrame) throws Throwable {
+        EmbeddedConnection conn = EmbeddedConnection.connect(EmbeddedConnection.request(clients), cb, alloc);
+        EmbeddedChannel channel = conn.channel;
+        int replies = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            ByteBuf payload = alloc.buffer();
+            payload.writeCharSequence("{\"value\":" + i + "}", StandardCharsets.UTF_8);
+            conn.receive(binary ? new BinaryWebSocketFrame(payload) : new TextWebSocketFrame(payload));
+            for (ByteBuf buf; (buf = channel.readOutbound()) != null;) {
+                replies++;
+                buf.release();
+            }
+            assertTrue("Channel closed after " + i + " frames", channel.isOpen());
+        }
+        assertEquals(cb.getClass().getSimpleName() + " replies", FRAMES * repliesPerFrame, replies);
+        assertNoInboundMessages(channel);
+        conn.close();
+        assertNoActiveAllocations(cb.getClass().getSimpleName());
+    }
+
+    private void assertNoInboundMessages(EmbeddedChannel channel) {
+        Object msg = channel.readInbound();
+        if (msg != null) {
+            fail("Frame passed through the handler unconsumed: " + msg);
+        }
+    }
+
+    private void assertNoActiveAllocations(String what) {
+        long active = 0;
+        for (PoolArenaMetric arena : alloc.metric().directArenas()) {
+            active += arena.numActiveAllocations();
+        }
+        for (PoolArenaMetric arena : alloc.metric().heapArenas()) {
+            active += arena.numActiveAllocations();
+        }
+        assertEquals("Leaked buffers after " + what, 0L, active);
+    }
+}
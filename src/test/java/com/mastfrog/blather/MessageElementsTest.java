@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.EmbeddedConnection.Thing;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that onMessageElements() delivers the elements of an array message
+ * one at a time, in order, and flushes replies once per message.
+ *
+ * @author Tim Boudreau
+ */
+public class MessageElementsTest {
+
+    private final List<Integer> indices = new ArrayList<>();
+    private final List<Integer> values = new ArrayList<>();
+    private final List<Throwable> errors = new ArrayList<>();
+    private int flushes;
+
+    @Test
+    public void testElementsAreDeliveredInOrder() throws Exception {
+        EmbeddedConnection conn = connect(null);
+        conn.receive("[{\"value\":1},{\"value\":2},{\"value\":3}]", "[{\"value\":4}]", "[]");
+        assertEquals(Arrays.asList(1, 2, 3, 4), values);
+        // Indices are cumulative across messages
+        assertEquals(Arrays.asList(0, 1, 2, 3), indices);
+        assertEquals(errors.toString(), 0, errors.size());
+        conn.close();
+    }
+
+    @Test
+    public void testNonArrayIsASingleElement() throws Exception {
+        EmbeddedConnection conn = connect(null);
+        conn.receive("{\"value\":7}", "[{\"value\":8}]");
+        assertEquals(Arrays.asList(7, 8), values);
+        assertEquals(Arrays.asList(0, 1), indices);
+        assertEquals(errors.toString(), 0, errors.size());
+        conn.close();
+    }
+
+    @Test
+    public void testUnterminatedArrayIsReported() throws Exception {
+        EmbeddedConnection conn = connect(null);
+        conn.receive("[{\"value\":1},{\"value\":2}");
+        // Elements before the end of input were already delivered
+        assertEquals(Arrays.asList(1, 2), values);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).toString(), errors.get(0) instanceof IOException);
+        assertTrue(errors.get(0).getMessage(), errors.get(0).getMessage().startsWith("Unterminated array"));
+        conn.close();
+    }
+
+    @Test
+    public void testMappingErrorIsReported() throws Exception {
+        EmbeddedConnection conn = connect(null);
+        conn.receive("[{\"value\":1},{\"value\":\"not a number\"},{\"value\":3}]");
+        assertEquals(Arrays.asList(1), values);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).toString(), errors.get(0) instanceof IOException);
+        assertTrue(errors.get(0).getMessage(), errors.get(0).getMessage().contains("not a number"));
+        conn.close();
+    }
+
+    @Test
+    public void testRepliesAreFlushedOncePerMessage() throws Exception {
+        EmbeddedConnection conn = connect(thing -> new Thing(thing.value * 10));
+        conn.receive("[{\"value\":1},{\"value\":2},{\"value\":3}]");
+        assertEquals(1, flushes);
+        conn.receive("[{\"value\":4},{\"value\":5}]");
+        assertEquals(2, flushes);
+        assertEquals(Arrays.asList("{\"value\":10}", "{\"value\":20}", "{\"value\":30}",
+                "{\"value\":40}", "{\"value\":50}"), conn.replies());
+        // A message whose elements produce no replies does not flush
+        conn.receive("[]");
+        assertEquals(2, flushes);
+        conn.close();
+    }
+
+    private EmbeddedConnection connect(Function<Thing, Object> replier) throws Exception {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        ReqImpl request = EmbeddedConnection.request(clients);
+        request.withErrorHandler(thrown -> {
+            errors.add(thrown);
+            return true;
+        });
+        EmbeddedConnection conn = EmbeddedConnection.connect(request,
+                clients.new ElementsFrameCallback<>(Thing.class, (ix, thing, ctrl) -> {
+                    indices.add(ix);
+                    values.add(thing.value);
+                    return replier == null ? null : replier.apply(thing);
+                }));
+        // Count flushes from here on, not the ones the handshake made
+        conn.channel.pipeline().addFirst(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void flush(ChannelHandlerContext ctx) throws Exception {
+                flushes++;
+                super.flush(ctx);
+            }
+        });
+        return conn;
+    }
+}
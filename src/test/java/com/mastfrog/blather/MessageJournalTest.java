@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the ring buffer journal used to hold outbound messages.
+ *
+ * @author Tim Boudreau
+ */
+public class MessageJournalTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("blather-journal", ".ring");
+        Files.delete(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testRecordsSurviveReopening() throws IOException {
+        MessageJournal journal = new MessageJournal(file, 1024);
+        append(journal, "one", true);
+        append(journal, "two", false);
+        append(journal, "three", true);
+        journal.force();
+
+        journal = new MessageJournal(file, 1024);
+        long pos = journal.head();
+        assertRecord(journal, pos, "one", true);
+        journal.trim(pos = journal.next(pos));
+        assertRecord(journal, pos, "two", false);
+        journal.force();
+
+        journal = new MessageJournal(file, 1024);
+        assertEquals(pos, journal.head());
+        assertRecord(journal, pos, "two", false);
+        pos = journal.next(pos);
+        assertRecord(journal, pos, "three", true);
+        journal.trim(journal.next(pos));
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void testWrapsAround() throws IOException {
+        // Small enough that records, and their length headers, straddle the
+        // end of the buffer
+        MessageJournal journal = new MessageJournal(file, 37);
+        for (int i = 0; i < 500; i++) {
+            String a = "message " + i;
+            String b = "m" + i;
+            append(journal, a, true);
+            append(journal, b, false);
+            long pos = journal.head();
+            assertRecord(journal, pos, a, true);
+            pos = journal.next(pos);
+            assertRecord(journal, pos, b, false);
+            journal.trim(journal.next(pos));
+            assertTrue(journal.isEmpty());
+        }
+    }
+
+    @Test
+    public void testFullJournalRejectsMessages() throws IOException {
+        MessageJournal journal = new MessageJournal(file, 32);
+        append(journal, "0123456789", true);
+        append(journal, "0123456789", true);
+        try {
+            append(journal, "x", true);
+            fail("Journal should be full");
+        } catch (IOException ex) {
+            // expected
+        }
+        journal.trim(journal.next(journal.head()));
+        append(journal, "x", true);
+    }
+
+    @Test
+    public void testCloseUnmapsAndKeepsRecords() throws IOException {
+        MessageJournal journal = new MessageJournal(file, 1024);
+        append(journal, "kept", true);
+        journal.close();
+        journal.close();
+        try {
+            append(journal, "lost", true);
+            fail("Closed journal accepted a message");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        // A write completing after close must not touch the unmapped file
+        journal.trim(journal.tail());
+
+        journal = new MessageJournal(file, 1024);
+        assertRecord(journal, journal.head(), "kept", true);
+        assertEquals(journal.tail(), journal.next(journal.head()));
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testCapacityMismatchIsRejected() throws IOException {
+        new MessageJournal(file, 1024);
+        new MessageJournal(file, 2048);
+    }
+
+    private static void append(MessageJournal journal, String text, boolean isText) throws IOException {
+        ByteBuf buf = Unpooled.copiedBuffer(text, StandardCharsets.UTF_8);
+        try {
+            journal.append(buf, isText);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static void assertRecord(MessageJournal journal, long pos, String text, boolean isText) {
+        WebSocketFrame frame = journal.frameAt(pos, ByteBufAllocator.DEFAULT);
+        try {
+            assertEquals(isText ? TextWebSocketFrame.class : BinaryWebSocketFrame.class, frame.getClass());
+            assertEquals(text, frame.content().toString(StandardCharsets.UTF_8));
+        } finally {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.EmbeddedConnection.Thing;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that a MessageRouter binds each message to the type for its
+ * discriminator, passes the rest to its fallback, and reports messages which
+ * are not JSON to the request's error handler.
+ *
+ * @author Tim Boudreau
+ */
+public class MessageRouterTest {
+
+    private final List<Integer> things = new ArrayList<>();
+    private final List<String> other = new ArrayList<>();
+    private final List<Throwable> errors = new ArrayList<>();
+
+    private final MessageRouter router = MessageRouter.byField("type")
+            .route("thing", Thing.class, (ix, thing, ctrl) -> {
+                things.add(thing.value);
+                return null;
+            })
+            .otherwise((ix, text, ctrl) -> {
+                other.add(text.toString());
+                return null;
+            });
+
+    @Test
+    public void testRoutesByDiscriminator() throws Exception {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        EmbeddedConnection conn = connect(clients);
+        conn.receive("{\"type\":\"thing\",\"value\":3}",
+                "{\"value\":4,\"type\":\"thing\"}",
+                "{\"type\":\"unknown\",\"value\":5}",
+                "[1,2]");
+        assertEquals(Arrays.asList(3, 4), things);
+        assertEquals(Arrays.asList("{\"type\":\"unknown\",\"value\":5}", "[1,2]"), other);
+        assertEquals(errors.toString(), 0, errors.size());
+        conn.close();
+    }
+
+    @Test
+    public void testMalformedJsonIsReported() throws Exception {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        EmbeddedConnection conn = connect(clients);
+        conn.receive("not json");
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).toString(), errors.get(0) instanceof IOException);
+        assertTrue(errors.get(0).getMessage(), errors.get(0).getMessage().contains("not json"));
+        assertEquals(0, other.size());
+        conn.close();
+    }
+
+    private EmbeddedConnection connect(WebSocketClientsImpl clients) throws Exception {
+        ReqImpl request = EmbeddedConnection.request(clients);
+        request.withErrorHandler(thrown -> {
+            errors.add(thrown);
+            return true;
+        });
+        return EmbeddedConnection.connect(request, clients.new RoutingFrameCallback(router));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives a multiplexed connection over an embedded channel, playing the
+ * server's side of the envelope protocol by hand.
+ *
+ * @author Tim Boudreau
+ */
+public class MultiplexerTest {
+
+    private WebSocketClientsImpl clients;
+    private EmbeddedConnection conn;
+    private Multiplexer mux;
+    private final List<String> received = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+    }
+
+    @After
+    public void tearDown() {
+        if (conn != null) {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testSendsWaitForCredit() throws Throwable {
+        LogicalStream stream = connect(4);
+        List<ChannelFuture> futures = new ArrayList<>();
+        for (String s : Arrays.asList("a", "b", "c")) {
+            futures.add(stream.send(s));
+        }
+        assertEquals(3, stream.queued());
+        assertEquals(Collections.emptyList(), envelopes());
+        for (ChannelFuture f : futures) {
+            assertFalse(f.isDone());
+        }
+
+        conn.receive(credit(1, 2));
+        assertEquals(Arrays.asList("1 data a", "1 data b"), envelopes());
+        assertTrue(futures.get(0).isSuccess());
+        assertTrue(futures.get(1).isSuccess());
+        assertFalse(futures.get(2).isDone());
+        assertEquals(1, stream.queued());
+        assertEquals(0, stream.sendCredit());
+
+        conn.receive(credit(1, 5));
+        assertEquals(Arrays.asList("1 data c"), envelopes());
+        assertTrue(futures.get(2).isSuccess());
+        assertEquals(4, stream.sendCredit());
+        // With credit in hand, sends go straight out
+        assertTrue(stream.send("d").isSuccess());
+        assertEquals(Arrays.asList("1 data d"), envelopes());
+    }
+
+    @Test
+    public void testCreditIsGrantedBackOncePerRead() throws Throwable {
+        connect(4);
+        conn.receive(data(1, "a"), data(1, "b"), data(1, "c"));
+        assertEquals(Arrays.asList("a", "b", "c"), received);
+        assertEquals(Arrays.asList("1 credit 3"), envelopes());
+
+        // Below half the initial credit, nothing is granted yet
+        conn.receive(data(1, "d"));
+        assertEquals(Collections.emptyList(), envelopes());
+        conn.receive(data(1, "e"));
+        assertEquals(Arrays.asList("1 credit 2"), envelopes());
+        assertTrue(conn.channel.isOpen());
+    }
+
+    @Test
+    public void testPeerExceedingCreditIsAnError() throws Throwable {
+        connect(2);
+        conn.receive(data(1, "a"), data(1, "b"), data(1, "c"));
+        conn.channel.runPendingTasks();
+        assertEquals(Arrays.asList("a", "b"), received);
+        assertFalse("Connection should be closed", conn.channel.isOpen());
+    }
+
+    @Test
+    public void testCloseFailsPendingWrites() throws Throwable {
+        LogicalStream stream = connect(4);
+        ChannelFuture f = stream.send("a");
+        assertFalse(f.isDone());
+
+        ByteBuf close = Unpooled.buffer().writeInt(1).writeByte(Multiplexer.CLOSE);
+        conn.receive(new BinaryWebSocketFrame(close));
+        assertTrue(f.isDone());
+        assertFalse(f.isSuccess());
+        assertEquals(0, mux.streamCount());
+        assertNull(mux.stream(1));
+        assertFalse(stream.send("b").isSuccess());
+        assertEquals(Collections.emptyList(), envelopes());
+    }
+
+    @Test
+    public void testDisconnectFailsPendingWrites() throws Throwable {
+        LogicalStream stream = connect(4);
+        ChannelFuture f = stream.send("a");
+        conn.channel.close();
+        conn.channel.runPendingTasks();
+        assertTrue(f.isDone());
+        assertFalse(f.isSuccess());
+        assertNull(stream.channel());
+        assertEquals(0, mux.streamCount());
+    }
+
+    @Test
+    public void testEchoedFrameIsRetained() throws Throwable {
+        ReqImpl req = EmbeddedConnection.request(clients);
+        mux = new Multiplexer(clients, req, 4);
+        mux.open(7, WebSocketFrame.class, (ix, frame, ctrl) -> frame);
+        conn = EmbeddedConnection.connect(req, mux.new Demultiplexer());
+        assertEquals(Arrays.asList("7 credit 4"), envelopes());
+        conn.receive(credit(7, 1), data(7, "ping"));
+        assertEquals(Arrays.asList("7 data ping"), envelopes());
+        assertTrue(conn.channel.isOpen());
+    }
+
+    @Test
+    public void testStreamDataWaitsForRateLimit() throws Throwable {
+        ReqImpl req = EmbeddedConnection.request(clients);
+        // One message now, and no more for a very long time - which the
+        // initial credit grant uses up
+        req.rateLimit(RateLimit.builder().messagesPerSecond(0.001).build());
+        mux = new Multiplexer(clients, req, 4);
+        LogicalStream stream = mux.open(1, String.class, (ix, msg, ctrl) -> null);
+        conn = EmbeddedConnection.connect(req, mux.new Demultiplexer());
+        assertEquals(Arrays.asList("1 credit 4"), envelopes());
+
+        conn.receive(credit(1, 5));
+        ChannelFuture f = stream.send("a");
+        assertEquals(0, stream.queued());
+        assertEquals(Collections.emptyList(), envelopes());
+        assertFalse(f.isDone());
+
+        conn.close();
+        conn = null;
+        assertTrue(f.isDone());
+        assertFalse(f.isSuccess());
+    }
+
+    private LogicalStream connect(int credit) throws Exception {
+        ReqImpl req = EmbeddedConnection.request(clients);
+        mux = new Multiplexer(clients, req, credit);
+        LogicalStream result = mux.open(1, String.class, (ix, msg, ctrl) -> {
+            received.add(msg);
+            return null;
+        });
+        conn = EmbeddedConnection.connect(req, mux.new Demultiplexer());
+        // Opening the stream grants the server its initial credit
+        assertEquals(Arrays.asList("1 credit " + credit), envelopes());
+        return result;
+    }
+
+    private static WebSocketFrame credit(int stream, int credit) {
+        return new BinaryWebSocketFrame(Unpooled.buffer()
+                .writeInt(stream).writeByte(Multiplexer.CREDIT).writeInt(credit));
+    }
+
+    private static WebSocketFrame data(int stream, String text) {
+        ByteBuf buf = Unpooled.buffer().writeInt(stream).writeByte(Multiplexer.DATA);
+        buf.writeCharSequence(text, StandardCharsets.UTF_8);
+        return new BinaryWebSocketFrame(buf);
+    }
+
+    /**
+     * Describe the envelopes the client has sent since the last call.
+     */
+    private List<String> envelopes() {
+        List<String> result = new ArrayList<>();
+        for (WebSocketFrame frame : conn.sent()) {
+            ByteBuf buf = frame.content();
+            int id = buf.readInt();
+            byte kind = buf.readByte();
+            switch (kind) {
+                case Multiplexer.DATA:
+                    result.add(id + " data " + buf.toString(StandardCharsets.UTF_8));
+                    break;
+                case Multiplexer.CREDIT:
+                    result.add(id + " credit " + buf.readInt());
+                    break;
+                default:
+                    result.add(id + " close");
+            }
+            frame.release();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that the outbound scheduler stays under its rate limit and lets
+ * high priority messages overtake queued bulk messages.
+ *
+ * @author Tim Boudreau
+ */
+public class OutboundSchedulerTest {
+
+    @Test
+    public void testHighPriorityOvertakesQueuedMessages() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ManualTicker ticker = new ManualTicker();
+        // 100 per second with a 50ms burst allows 5 messages at once, then
+        // one every 10ms
+        OutboundScheduler sched = new OutboundScheduler(channel, RateLimit.builder()
+                .messagesPerSecond(100).burst(Duration.ofMillis(50)).build(), ticker);
+        for (int i = 0; i < 10; i++) {
+            sched.send(new TextWebSocketFrame("low " + i), Priority.LOW, channel.newPromise());
+        }
+        sched.send(new TextWebSocketFrame("high"), Priority.HIGH, channel.newPromise());
+
+        List<String> written = new ArrayList<>();
+        drain(channel, written);
+        assertEquals(5, written.size());
+        assertEquals(6, sched.queued());
+
+        ticker.advance(5, TimeUnit.MILLISECONDS);
+        sched.run();
+        drain(channel, written);
+        assertEquals("Half a token is not enough to send", 5, written.size());
+
+        for (int i = 0; i < 6; i++) {
+            ticker.advance(i == 0 ? 6 : 10, TimeUnit.MILLISECONDS);
+            sched.run();
+            drain(channel, written);
+            assertEquals(6 + i, written.size());
+        }
+        assertEquals(0, sched.queued());
+        assertEquals("high", written.get(5));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("low " + i, written.get(i < 5 ? i : i + 1));
+        }
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testByteLimit() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ManualTicker ticker = new ManualTicker();
+        // 1000 bytes per second, at most 100 at once
+        OutboundScheduler sched = new OutboundScheduler(channel, RateLimit.builder()
+                .bytesPerSecond(1000).burst(Duration.ofMillis(100)).build(), ticker);
+        for (int i = 0; i < 3; i++) {
+            sched.send(new TextWebSocketFrame(repeat('x', 60)), Priority.NORMAL, channel.newPromise());
+        }
+        List<String> written = new ArrayList<>();
+        drain(channel, written);
+        assertEquals(1, written.size());
+
+        // 40 bytes left; the 20 more needed take 20ms
+        ticker.advance(19, TimeUnit.MILLISECONDS);
+        sched.run();
+        drain(channel, written);
+        assertEquals(1, written.size());
+        ticker.advance(2, TimeUnit.MILLISECONDS);
+        sched.run();
+        drain(channel, written);
+        assertEquals(2, written.size());
+        ticker.advance(60, TimeUnit.MILLISECONDS);
+        sched.run();
+        drain(channel, written);
+        assertEquals(3, written.size());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testQueuedMessagesAreReleasedOnClose() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        OutboundScheduler sched = new OutboundScheduler(channel, RateLimit.builder()
+                .messagesPerSecond(1).build());
+        List<WebSocketFrame> frames = new ArrayList<>();
+        List<ChannelFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            WebSocketFrame frame = new TextWebSocketFrame("msg " + i);
+            frames.add(frame);
+            futures.add(sched.send(frame, Priority.NORMAL, channel.newPromise()));
+        }
+        List<String> written = new ArrayList<>();
+        drain(channel, written);
+        assertEquals(1, written.size());
+        channel.close();
+        assertEquals(0, sched.queued());
+        for (int i = 1; i < 3; i++) {
+            assertTrue(futures.get(i).isDone());
+            assertFalse(futures.get(i).isSuccess());
+            assertEquals(0, frames.get(i).refCnt());
+        }
+        channel.finishAndReleaseAll();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void drain(EmbeddedChannel channel, List<String> into) {
+        for (WebSocketFrame frame; (frame = channel.readOutbound()) != null;) {
+            into.add(((TextWebSocketFrame) frame).text());
+            frame.release();
+        }
+    }
+}
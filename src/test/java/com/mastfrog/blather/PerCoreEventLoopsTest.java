@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Checks that connections to the same address are spread over every loop,
+ * and, where the native transport is usable, that connections run over epoll
+ * with busy polling.
+ *
+ * @author Tim Boudreau
+ */
+public class PerCoreEventLoopsTest {
+
+    @Test
+    public void testConnectionsToOneHostUseEveryLoop() {
+        ClientEventLoops loops = ClientEventLoops.threadPerCore(3, false, null);
+        try {
+            assertFalse(loops.isShared());
+            Set<EventLoop> used = new HashSet<>();
+            EventLoop first = loops.eventLoopFor("localhost", 8080, "/feed");
+            used.add(first);
+            used.add(loops.eventLoopFor("localhost", 8080, "/feed"));
+            used.add(loops.eventLoopFor("localhost", 8080, "/feed"));
+            assertEquals(3, used.size());
+            assertEquals(first, loops.eventLoopFor("localhost", 8080, "/feed"));
+        } finally {
+            loops.group().shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void testUsesEpollWhereAvailable() {
+        assumeTrue(Epoll.isAvailable());
+        ClientEventLoops loops = ClientEventLoops.threadPerCore(2, true, null);
+        try {
+            assertTrue(loops.group() instanceof EpollEventLoopGroup);
+            EventLoop loop = loops.eventLoopFor("localhost", 8080, "/feed");
+            assertSame(EpollSocketChannel.class, Transports.socketChannel(loop));
+        } finally {
+            loops.group().shutdownGracefully();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testBusyPollingConnectionReceivesMessages() throws Throwable {
+        assumeTrue(Epoll.isAvailable());
+        EventLoopGroup serverGroup = new NioEventLoopGroup(1);
+        Blather blather = Blather.create(new ObjectMapper(), ClientEventLoops.threadPerCore(1, true, null));
+        try {
+            Channel server = startServer(serverGroup);
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+            AtomicReference<String> received = new AtomicReference<>();
+            AtomicReference<Channel> channel = new AtomicReference<>();
+            CountDownLatch latch = new CountDownLatch(1);
+            blather.client("127.0.0.1", port, false).request("/ws")
+                    .onTextMessage((ix, text, ctrl) -> {
+                        received.set(text.toString());
+                        channel.set(ctrl.channel());
+                        latch.countDown();
+                        return null;
+                    });
+            assertTrue("Timed out waiting for message", latch.await(20, TimeUnit.SECONDS));
+            assertEquals("hello", received.get());
+            assertTrue(channel.get() instanceof EpollSocketChannel);
+        } finally {
+            blather.shutdown(Duration.ofSeconds(2));
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Channel startServer(EventLoopGroup group) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(8192),
+                                new WebSocketServerProtocolHandler("/ws"), new Hello());
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+    }
+
+    static final class Hello extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+                ctx.writeAndFlush(new TextWebSocketFrame("hello"));
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+}
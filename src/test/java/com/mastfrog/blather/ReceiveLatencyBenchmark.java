@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Compares the latency between a server sending a message and the client's
+ * handler receiving it, using the default event loops and thread-per-core
+ * event loops with busy polling. The server stamps each message with the
+ * time it was sent; since it runs in the same JVM, the client can subtract
+ * that from the time it is received.
+ * <p>
+ * The two configurations are measured alternately over several rounds and
+ * the median of each round's percentiles compared, so one noisy round does
+ * not decide the result. Excluded from the default test run; run it with
+ * <code>mvn test -Pbenchmarks</code>.
+ *
+ * @author Tim Boudreau
+ */
+public class ReceiveLatencyBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int WARMUP = 2000;
+    private static final int MESSAGES = 10000;
+
+    @Test(timeout = 600000)
+    public void testBusyPollingLowersReceiveLatency() throws Throwable {
+        // Busy polling needs the epoll transport; NIO would make the two
+        // configurations the same
+        assumeTrue(Epoll.isAvailable());
+        EventLoopGroup serverGroup = new NioEventLoopGroup(1);
+        try {
+            Channel server = startServer(serverGroup);
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+            long[] standardP50 = new long[ROUNDS];
+            long[] standardP99 = new long[ROUNDS];
+            long[] perCoreP50 = new long[ROUNDS];
+            long[] perCoreP99 = new long[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                long[] standard = measure(Blather.create(new ObjectMapper()), port);
+                long[] perCore = measure(Blather.create(new ObjectMapper(),
+                        ClientEventLoops.threadPerCore(1, true, null)), port);
+                standardP50[i] = p50(standard);
+                standardP99[i] = p99(standard);
+                perCoreP50[i] = p50(perCore);
+                perCoreP99[i] = p99(perCore);
+                System.out.println("Round " + i + ", default event loops:        " + describe(standard));
+                System.out.println("Round " + i + ", thread-per-core, busy-poll: " + describe(perCore));
+            }
+            long standard50 = median(standardP50);
+            long standard99 = median(standardP99);
+            long perCore50 = median(perCoreP50);
+            long perCore99 = median(perCoreP99);
+            System.out.println("Median p50 " + micros(standard50) + " vs " + micros(perCore50)
+                    + ", median p99 " + micros(standard99) + " vs " + micros(perCore99));
+            assertTrue("Busy polling did not lower median latency: " + micros(perCore50)
+                    + " vs " + micros(standard50), perCore50 < standard50);
+            assertTrue("Busy polling did not lower p99 latency: " + micros(perCore99)
+                    + " vs " + micros(standard99), perCore99 < standard99);
+        } finally {
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private long[] measure(Blather blather, int port) throws Throwable {
+        long[] latencies = new long[MESSAGES];
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            blather.client("127.0.0.1", port, false).request("/ws")
+                    .onTextMessage((ix, text, ctrl) -> {
+                        long elapsed = System.nanoTime() - Long.parseLong(text.toString());
+                        if (ix >= WARMUP) {
+                            latencies[ix - WARMUP] = elapsed;
+                            if (ix == WARMUP + MESSAGES - 1) {
+                                done.countDown();
+                            }
+                        }
+                        return null;
+                    });
+            assertTrue("Timed out waiting for messages", done.await(60, TimeUnit.SECONDS));
+        } finally {
+            blather.shutdown(Duration.ofSeconds(2));
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long p50(long[] sorted) {
+        return sorted[sorted.length / 2];
+    }
+
+    private static long p99(long[] sorted) {
+        return sorted[(int) (sorted.length * 0.99)];
+    }
+
+    private static long median(long[] values) {
+        long[] copy = values.clone();
+        Arrays.sort(copy);
+        return copy[copy.length / 2];
+    }
+
+    private static String describe(long[] sorted) {
+        return "p50 " + micros(p50(sorted))
+                + ", p99 " + micros(p99(sorted))
+                + ", max " + micros(sorted[sorted.length - 1]);
+    }
+
+    private static String micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+    }
+
+    private static Channel startServer(EventLoopGroup group) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(8192),
+                                new WebSocketServerProtocolHandler("/ws"), new Feed());
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+    }
+
+    static final class Feed extends ChannelInboundHandlerAdapter {
+
+        private ScheduledFuture<?> task;
+        private int sent;
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+                task = ctx.executor().scheduleAtFixedRate(() -> {
+                    ctx.writeAndFlush(new TextWebSocketFrame(Long.toString(System.nanoTime())));
+                    if (++sent == WARMUP + MESSAGES) {
+                        task.cancel(false);
+                    }
+                }, 10, 100, TimeUnit.MICROSECONDS);
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (task != null) {
+                task.cancel(false);
+            }
+            super.channelInactive(ctx);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.blather.WebSocketClientsImpl.ClientImpl.ReqImpl;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.time.Duration;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that requests made from a template share its URI and handshake
+ * headers instead of rebuilding them, unless they add their own.
+ *
+ * @author Tim Boudreau
+ */
+public class RequestTemplateTest {
+
+    private WebSocketClientsImpl clients;
+    private WebsocketRequestTemplate template;
+
+    @Before
+    public void setUp() {
+        clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        template = clients.client("127.0.0.1", 8080).request("/ws")
+                .addHeader(Headers.stringHeader("X-Foo"), "bar")
+                .addUrlQueryPair("a", "1")
+                .template();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        clients.shutdown(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void testRequestsShareUriAndHeaders() throws Exception {
+        ReqImpl one = (ReqImpl) template.request();
+        ReqImpl two = (ReqImpl) template.request("hello");
+        assertEquals("a=1", template.uri().getQuery());
+        assertSame(template.uri(), one.uri());
+        assertSame(template.uri(), two.uri());
+        assertSame(one.handshakeHeaders(), two.handshakeHeaders());
+        assertEquals("bar", one.handshakeHeaders().get("X-Foo"));
+    }
+
+    @Test
+    public void testAdditionsDoNotLeakIntoTemplate() throws Exception {
+        ReqImpl custom = (ReqImpl) template.request();
+        custom.addHeader(Headers.stringHeader("X-Bar"), "baz").addUrlQueryPair("b", "2");
+        HttpHeaders headers = custom.handshakeHeaders();
+        assertEquals("bar", headers.get("X-Foo"));
+        assertEquals("baz", headers.get("X-Bar"));
+        assertEquals("a=1&b=2", custom.uri().getQuery());
+        assertEquals("a=1", template.uri().getQuery());
+
+        ReqImpl plain = (ReqImpl) template.request();
+        assertNotSame(headers, plain.handshakeHeaders());
+        assertEquals(null, plain.handshakeHeaders().get("X-Bar"));
+        assertSame(template.uri(), plain.uri());
+    }
+}
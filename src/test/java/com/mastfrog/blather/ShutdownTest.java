@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks that a Blather which has been shut down refuses new work.
+ *
+ * @author Tim Boudreau
+ */
+public class ShutdownTest {
+
+    @Test
+    public void testNothingNewAfterShutdown() throws Exception {
+        Blather blather = Blather.create(new ObjectMapper());
+        WebsocketHostClient client = blather.client("127.0.0.1", 8080);
+        WebsocketRequestTemplate template = client.template("/ws");
+
+        ShutdownReport report = blather.shutdown(Duration.ofSeconds(1));
+        assertEquals(0, report.total());
+        assertEquals(0, blather.openConnections());
+
+        rejected(() -> blather.client("127.0.0.1", 8080));
+        rejected(() -> blather.client(LoadBalancing.LEAST_CONNECTIONS, false,
+                new InetSocketAddress("127.0.0.1", 8080)));
+        rejected(() -> blather.client("ws://127.0.0.1:8080/ws"));
+        rejected(() -> client.request("/ws"));
+        rejected(() -> client.request("/ws", "hello"));
+        rejected(template::request);
+    }
+
+    @Test
+    public void testRequestStartedAfterShutdownReleasesItsEndpoint() throws Exception {
+        Blather blather = Blather.create(new ObjectMapper());
+        BalancedClient client = (BalancedClient) blather.client(LoadBalancing.LEAST_CONNECTIONS,
+                false, new InetSocketAddress("127.0.0.1", 8080));
+        WebsocketClientRequest req = client.request("/ws");
+        assertEquals(1, client.endpoints[0].outstanding.get());
+
+        blather.shutdown(Duration.ofSeconds(1));
+        rejected(() -> req.onMessage(String.class, (ix, msg, ctrl) -> null));
+        assertEquals(0, client.endpoints[0].outstanding.get());
+    }
+
+    private static void rejected(Runnable r) {
+        try {
+            r.run();
+            fail("Should have thrown");
+        } catch (IllegalStateException expected) {
+            // ok
+        }
+    }
+}
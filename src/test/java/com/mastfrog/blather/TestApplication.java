@@ -42,8 +42,10 @@ import com.mastfrog.acteur.websocket.OnWebsocketConnect;
 import com.mastfrog.acteur.websocket.WebSocketUpgradeActeur;
 import com.mastfrog.acteurbase.Deferral;
 import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import java.io.IOException;
@@ -63,6 +65,7 @@ public class TestApplication extends Application {
     TestApplication(Provider<ErrorInterceptor> icept) {
         this.icept = icept;
         add(WsTestPage.class);
+        add(MuxTestPage.class);
     }
 
     @Override
@@ -130,4 +133,28 @@ public class TestApplication extends Application {
             }
         }
     }
+
+    /**
+     * Echoes binary frames back unchanged, so a multiplexed connection is
+     * granted back the credit it grants and receives its own stream data.
+     */
+    static class MuxTestPage extends Page {
+
+        @Inject
+        @SuppressWarnings("deprecation")
+        MuxTestPage(ActeurFactory af) {
+            add(af.matchMethods(true, Method.GET, Method.POST));
+            add(af.matchPath("^mux$"));
+            add(WebSocketUpgradeActeur.class);
+            add(LoopbackWebsocketActeur.class);
+        }
+
+        static class LoopbackWebsocketActeur extends Acteur {
+
+            @Inject
+            LoopbackWebsocketActeur(WebSocketFrame frame) {
+                ok(new BinaryWebSocketFrame(Unpooled.copiedBuffer(frame.content())));
+            }
+        }
+    }
 }
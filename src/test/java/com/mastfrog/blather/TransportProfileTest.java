@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+import java.time.Duration;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks which socket options a transport profile applies.
+ *
+ * @author Tim Boudreau
+ */
+public class TransportProfileTest {
+
+    @Test
+    public void testDefaultLeavesNettyDefaults() {
+        assertTrue(options(TransportProfile.DEFAULT, true).isEmpty());
+    }
+
+    @Test
+    public void testTcpOptionsOnlyApplyToTcp() {
+        TransportProfile profile = TransportProfile.LOW_LATENCY.toBuilder()
+                .keepAlive(true)
+                .socketBuffers(4096, 8192)
+                .build();
+        Map<ChannelOption<?>, Object> tcp = options(profile, true);
+        assertEquals(Boolean.TRUE, tcp.get(ChannelOption.TCP_NODELAY));
+        assertEquals(Boolean.TRUE, tcp.get(ChannelOption.SO_KEEPALIVE));
+        assertEquals(4096, tcp.get(ChannelOption.SO_RCVBUF));
+        assertEquals(8192, tcp.get(ChannelOption.SO_SNDBUF));
+        assertEquals(5000, tcp.get(ChannelOption.CONNECT_TIMEOUT_MILLIS));
+        WriteBufferWaterMark mark = (WriteBufferWaterMark) tcp.get(ChannelOption.WRITE_BUFFER_WATER_MARK);
+        assertEquals(8 * 1024, mark.low());
+        assertEquals(32 * 1024, mark.high());
+
+        Map<ChannelOption<?>, Object> unix = options(profile, false);
+        assertFalse(unix.containsKey(ChannelOption.TCP_NODELAY));
+        assertFalse(unix.containsKey(ChannelOption.SO_KEEPALIVE));
+        assertEquals(5000, unix.get(ChannelOption.CONNECT_TIMEOUT_MILLIS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeConnectTimeoutIsRejected() {
+        TransportProfile.builder().connectTimeout(Duration.ofMillis(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptySocketBuffersAreRejected() {
+        TransportProfile.builder().socketBuffers(0, 1024);
+    }
+
+    private static Map<ChannelOption<?>, Object> options(TransportProfile profile, boolean tcp) {
+        Bootstrap bootstrap = new Bootstrap();
+        profile.configure(bootstrap, tcp);
+        return bootstrap.config().options();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Connects over a unix domain socket, both with the default NIO event loops,
+ * for which a separate epoll loop is created, and with epoll loops. Skipped
+ * where the native epoll transport is not usable.
+ *
+ * @author Tim Boudreau
+ */
+public class UnixClientTest {
+
+    private EventLoopGroup serverGroup;
+    private Path dir;
+    private Path socket;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Epoll.isAvailable());
+        dir = Files.createTempDirectory("blather-unix");
+        socket = dir.resolve("feed.sock");
+        serverGroup = new EpollEventLoopGroup(1);
+        new ServerBootstrap()
+                .group(serverGroup)
+                .channel(EpollServerDomainSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(8192),
+                                new WebSocketServerProtocolHandler("/ws"), new Hello());
+                    }
+                })
+                .bind(new DomainSocketAddress(socket.toString())).sync();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (serverGroup != null) {
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+        }
+        if (dir != null) {
+            Files.deleteIfExists(socket);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testUnixClientWithNioLoops() throws Throwable {
+        Blather blather = Blather.create(new ObjectMapper());
+        try {
+            assertReceives(blather.unixClient(socket).request("/ws"));
+        } finally {
+            blather.shutdown(Duration.ofSeconds(2));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testUnixUrlWithEpollLoops() throws Throwable {
+        Blather blather = Blather.create(new ObjectMapper(), ClientEventLoops.threadPerCore(1, false, null));
+        try {
+            assertReceives(blather.client("ws+unix://" + socket + ":/ws"));
+        } finally {
+            blather.shutdown(Duration.ofSeconds(2));
+        }
+    }
+
+    private void assertReceives(WebsocketClientRequest request) throws InterruptedException {
+        AtomicReference<String> received = new AtomicReference<>();
+        AtomicReference<Channel> channel = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        request.onTextMessage((ix, text, ctrl) -> {
+            received.set(text.toString());
+            channel.set(ctrl.channel());
+            latch.countDown();
+            return null;
+        });
+        assertTrue("Timed out waiting for message", latch.await(20, TimeUnit.SECONDS));
+        assertEquals("hello", received.get());
+        assertTrue(channel.get() + "", channel.get() instanceof EpollDomainSocketChannel);
+    }
+
+    static final class Hello extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+                ctx.writeAndFlush(new TextWebSocketFrame("hello"));
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+}
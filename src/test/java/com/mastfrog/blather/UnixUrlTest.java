@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks how <code>ws+unix://</code> URLs are split into a socket, a path and
+ * query parameters.
+ *
+ * @author Tim Boudreau
+ */
+public class UnixUrlTest {
+
+    private Path socket;
+    private String path;
+    private final List<String> query = new ArrayList<>();
+
+    private WebsocketClientRequest client(String url) {
+        return Blather.unixRequest(url, this::unixClient);
+    }
+
+    private WebsocketHostClient unixClient(Path socket) {
+        this.socket = socket;
+        return (WebsocketHostClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{WebsocketHostClient.class}, (proxy, method, args) -> {
+                    path = (String) args[0];
+                    return request();
+                });
+    }
+
+    @Test
+    public void testSocketPathAndQuery() {
+        client("ws+unix:///var/run/feed.sock:/ws/v1?since=0&name=a%20b&flag");
+        assertEquals(Paths.get("/var/run/feed.sock"), socket);
+        assertEquals("/ws/v1", path);
+        assertEquals(Arrays.asList("since=0", "name=a b", "flag="), query);
+    }
+
+    @Test
+    public void testPathDefaultsToRoot() {
+        client("ws+unix:///tmp/feed.sock");
+        assertEquals(Paths.get("/tmp/feed.sock"), socket);
+        assertEquals("/", path);
+        client("ws+unix:///tmp/feed.sock:?x=1");
+        assertEquals("/", path);
+        assertEquals(Arrays.asList("x=1"), query);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSocketIsRequired() {
+        client("ws+unix://:/ws");
+    }
+
+    private WebsocketClientRequest request() {
+        return (WebsocketClientRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{WebsocketClientRequest.class}, (proxy, method, args) -> {
+                    if (!"addUrlQueryPair".equals(method.getName())) {
+                        throw new AssertionError("Unexpected call to " + method);
+                    }
+                    query.add(args[0] + "=" + args[1]);
+                    return proxy;
+                });
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.blather;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the text and binary callbacks which hand handlers a view of the
+ * inbound frame rather than a copy.
+ *
+ * @author Tim Boudreau
+ */
+public class ViewCallbacksTest {
+
+    @Test
+    public void testAsciiTextIsAViewOfTheFrame() throws Exception {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        List<CharSequence> views = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        EmbeddedConnection conn = EmbeddedConnection.connect(clients,
+                clients.new TextViewFrameCallback((ix, text, ctrl) -> {
+                    views.add(text);
+                    texts.add(text.toString());
+                    return null;
+                }));
+        conn.receive("plain ascii", "caf\u00e9");
+        assertEquals(Arrays.asList("plain ascii", "caf\u00e9"), texts);
+        assertTrue(views.get(0) instanceof ByteBufCharSequence);
+        // Detached from the frame once the handler returned
+        assertEquals(0, views.get(0).length());
+        assertTrue(views.get(1) instanceof String);
+        conn.close();
+    }
+
+    @Test
+    public void testBinaryViewIsReadOnly() throws Exception {
+        WebSocketClientsImpl clients = (WebSocketClientsImpl) Blather.create(new ObjectMapper());
+        List<byte[]> received = new ArrayList<>();
+        List<Boolean> writable = new ArrayList<>();
+        EmbeddedConnection conn = EmbeddedConnection.connect(clients,
+                clients.new ByteBufferFrameCallback((ix, data, ctrl) -> {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.duplicate().get(bytes);
+                    received.add(bytes);
+                    try {
+                        data.put(0, (byte) 0);
+                        writable.add(true);
+                    } catch (ReadOnlyBufferException expected) {
+                        writable.add(false);
+                    }
+                    return null;
+                }));
+        conn.receive(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{1, 2, 3})));
+        assertEquals(1, received.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, received.get(0));
+        assertEquals("Handler could write to the frame", Arrays.asList(false), writable);
+        conn.close();
+    }
+}